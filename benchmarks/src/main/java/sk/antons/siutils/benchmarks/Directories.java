@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Generates directories with given number of small files for benchmarks.
+ * Shared read only directories are created once in
+ * ${java.io.tmpdir}/si-utils-bench and reused by next runs (creating million
+ * files takes some time).
+ * @author antons
+ */
+public class Directories {
+
+    /**
+     * Returns shared directory with given number of files. Benchmarks must
+     * not change content of such directory.
+     */
+    public static synchronized File shared(int count) throws IOException {
+        Path base = Path.of(System.getProperty("java.io.tmpdir"), "si-utils-bench");
+        Path dir = base.resolve("files-" + count);
+        Path complete = base.resolve("files-" + count + ".complete");
+        if(Files.exists(complete)) return dir.toFile();
+        delete(dir);
+        Files.createDirectories(dir);
+        fill(dir, count);
+        Files.createFile(complete);
+        return dir.toFile();
+    }
+
+    /**
+     * Creates new temporary directory with given number of files. It should
+     * be removed by delete().
+     */
+    public static File create(int count) throws IOException {
+        Path dir = Files.createTempDirectory("si-utils-bench-");
+        fill(dir, count);
+        return dir.toFile();
+    }
+
+    /**
+     * Moves all files from one directory to another one.
+     */
+    public static void moveAll(File from, File to) throws IOException {
+        try (Stream<Path> stream = Files.list(from.toPath())) {
+            for(Path p : (Iterable<Path>)stream::iterator) {
+                Files.move(p, to.toPath().resolve(p.getFileName()));
+            }
+        }
+    }
+
+    /**
+     * Deletes directory with content.
+     */
+    public static void delete(Path dir) throws IOException {
+        if(dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for(Path p : (Iterable<Path>)stream.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    public static void delete(File dir) throws IOException {
+        if(dir != null) delete(dir.toPath());
+    }
+
+    private static void fill(Path dir, int count) throws IOException {
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < count; i++) {
+            // names are not in creation order, so sorting has some work
+            String name = String.format("f-%08d.txt", (i * 7919L) % count);
+            Path p = dir.resolve(name);
+            Files.write(p, name.getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(p, FileTime.fromMillis(now - (count - i) * 1000L));
+        }
+    }
+}
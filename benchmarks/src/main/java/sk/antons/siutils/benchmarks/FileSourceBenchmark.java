@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import sk.antons.siutils.file.FileByFileMessageSource;
+
+/**
+ * Receive and confirm (move to backup directory) of files by
+ * FileByFileMessageSource. Each iteration processes batch of files and files
+ * are moved back to input directory after iteration.
+ *
+ * Source is created and first file is received in iteration setup, so
+ * directory index (indexed mode) is built before measurement. receive
+ * measures only selection of next file (file is reset, not confirmed),
+ * receiveAndMove adds confirmation.
+ *
+ * Not indexed source lists whole directory for each file, so 1M files takes
+ * long time (use -p files=10000,100000 for quick run).
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = 200)
+@Measurement(iterations = 5, batchSize = 200)
+@Fork(1)
+public class FileSourceBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    @Param({"false", "true"})
+    public boolean asyncCompletion;
+
+    private File input;
+    private File backup;
+    private FileByFileMessageSource source;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        input = Directories.create(files);
+        backup = Files.createTempDirectory("si-utils-bench-backup-").toFile();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() {
+        source = FileByFileMessageSource.of(input.getAbsolutePath())
+            .backupDirectory(backup.getAbsolutePath())
+            .indexed(indexed)
+            .asyncCompletion(asyncCompletion);
+        // seeds directory index
+        if(source.receive() == null) throw new IllegalStateException("no file to process");
+        source.reset();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() throws IOException {
+        source.flush(null);
+        source.close();
+        Directories.moveAll(backup, input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        Directories.delete(input);
+        Directories.delete(backup);
+    }
+
+    @Benchmark
+    public Message<File> receive() {
+        Message<File> message = source.receive();
+        if(message == null) throw new IllegalStateException("no file to process");
+        source.reset();
+        return message;
+    }
+
+    @Benchmark
+    public Message<File> receiveAndMove() {
+        Message<File> message = source.receive();
+        if(message == null) throw new IllegalStateException("no file to process");
+        source.move();
+        return message;
+    }
+
+}
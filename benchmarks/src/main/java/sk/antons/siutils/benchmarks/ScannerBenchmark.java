@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sk.antons.siutils.file.AttributeComparator;
+import sk.antons.siutils.file.RealHeadDirectoryScanner;
+import sk.antons.siutils.file.SortedDirectoryScanner;
+import sk.antons.siutils.file.SortedHeadDirectoryScanner;
+
+/**
+ * Listing of large directory by scanners. Real head scanner returns first
+ * files in directory order, sorted scanners returns ordered selection (whole
+ * directory sorted or only head of given size).
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScannerBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    @Param({"100"})
+    public int head;
+
+    private File dir;
+    private RealHeadDirectoryScanner realHead;
+    private SortedDirectoryScanner sortedByName;
+    private SortedDirectoryScanner sortedByTime;
+    private SortedHeadDirectoryScanner sortedHead;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Directories.shared(files);
+        realHead = new RealHeadDirectoryScanner(head);
+        sortedByName = SortedDirectoryScanner.instance();
+        sortedByTime = SortedDirectoryScanner.instance().comparator(AttributeComparator.lastModified());
+        sortedHead = SortedHeadDirectoryScanner.of(head);
+        // default accept once filter would reject files in next invocations
+        realHead.setFilter(null);
+        sortedByName.setFilter(null);
+        sortedByTime.setFilter(null);
+        sortedHead.setFilter(null);
+    }
+
+    @Benchmark
+    public List<File> realHeadListing() {
+        return realHead.listFiles(dir);
+    }
+
+    @Benchmark
+    public List<File> sortedByNameListing() {
+        return sortedByName.listFiles(dir);
+    }
+
+    @Benchmark
+    public List<File> sortedByTimeListing() {
+        return sortedByTime.listFiles(dir);
+    }
+
+    @Benchmark
+    public List<File> sortedHeadListing() {
+        return sortedHead.listFiles(dir);
+    }
+
+}
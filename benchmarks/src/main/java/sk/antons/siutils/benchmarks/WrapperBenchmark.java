@@ -0,0 +1,120 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.benchmarks;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import sk.antons.siutils.core.InactivityDelayMessageSource;
+import sk.antons.siutils.core.MessageSourceBatchAction;
+import sk.antons.siutils.core.OnOffMessageSource;
+import sk.antons.siutils.core.RateLimitMessageSource;
+import sk.antons.siutils.log.SlfHandler;
+import sk.antons.siutils.metrics.MetricsMessageSource;
+
+/**
+ * Overhead of message source wrappers and SlfHandler compared to plain
+ * message source. Run with -prof gc to see allocation per operation.
+ * (slf4j-nop is used so all log levels are disabled)
+ * @author antons
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapperBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(WrapperBenchmark.class);
+
+    private Message<String> message;
+    private MessageSource<String> plain;
+    private MessageSource<String> onOff;
+    private MessageSource<String> inactivityDelay;
+    private MessageSource<String> batchAction;
+    private MessageSource<String> rateLimit;
+    private MessageSource<String> metrics;
+    private SlfHandler slfLambda;
+    private SlfHandler slfGuarded;
+
+    @Setup
+    public void setup() {
+        message = MessageBuilder.withPayload("payload").setHeader("name", "value").build();
+        plain = () -> message;
+        onOff = OnOffMessageSource.of(plain).condition(() -> true);
+        inactivityDelay = InactivityDelayMessageSource.of(plain).inactivityDelay(Duration.ofSeconds(1));
+        batchAction = MessageSourceBatchAction.of(plain).action(() -> {}).after();
+        rateLimit = RateLimitMessageSource.of(plain).messagesPerSecond(1_000_000_000);
+        metrics = MetricsMessageSource.of(plain);
+        slfLambda = SlfHandler.of(lg -> lg.debug(log, "message {} {}", lg.payload(), lg.header("name")));
+        slfGuarded = SlfHandler.debug(log, "message {} {}", lg -> lg.payload(), lg -> lg.header("name"));
+    }
+
+    @Benchmark
+    public Message<String> plain() {
+        return plain.receive();
+    }
+
+    @Benchmark
+    public Message<String> onOff() {
+        return onOff.receive();
+    }
+
+    @Benchmark
+    public Message<String> inactivityDelay() {
+        return inactivityDelay.receive();
+    }
+
+    @Benchmark
+    public Message<String> batchAction() {
+        return batchAction.receive();
+    }
+
+    @Benchmark
+    public Message<String> rateLimit() {
+        return rateLimit.receive();
+    }
+
+    @Benchmark
+    public Message<String> metrics() {
+        return metrics.receive();
+    }
+
+    @Benchmark
+    public Message<?> slfHandlerLambda() {
+        return slfLambda.processMessage(message);
+    }
+
+    @Benchmark
+    public Message<?> slfHandlerGuarded() {
+        return slfGuarded.processMessage(message);
+    }
+
+}
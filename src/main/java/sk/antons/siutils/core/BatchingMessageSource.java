@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+import org.springframework.integration.IntegrationPatternType;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * Aggregates messages from delegated message source into one message with
+ * list of payloads. Delegated source is read until maxMessages messages are
+ * read, maxTime is elapsed, maxBytes (computed by sizeExtractor) is reached
+ * or delegated source returns null.
+ *
+ * Headers of all messages are merged (later messages overrides earlier
+ * ones). Original headers of all messages are available in HEADERS header.
+ *
+ * Sources which needs confirmation of each message (like
+ * FileByFileMessageSource with one lease) returns null after first message,
+ * so batch has only one message.
+ *
+ * If delegated source throws exception after some messages were read, batch
+ * of already read messages is returned and exception is thrown by next
+ * receive() call, so read messages are not lost.
+ * @author antons
+ */
+public class BatchingMessageSource<T> implements MessageSource<List<T>> {
+    public static final String BATCH_SIZE = "BatchingMessageSource.BATCH_SIZE";
+    public static final String HEADERS = "BatchingMessageSource.HEADERS";
+
+    private MessageSource<T> delegate;
+    private int maxMessages = 100;
+    private Duration maxTime;
+    private long maxBytes = 0;
+    private ToLongFunction<T> sizeExtractor;
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    public BatchingMessageSource(MessageSource<T> delegate) {
+        this.delegate = delegate;
+    }
+    public BatchingMessageSource<T> maxMessages(int maxMessages) { this.maxMessages = Math.max(1, maxMessages); return this; }
+    public BatchingMessageSource<T> maxTime(Duration maxTime) { this.maxTime = maxTime; return this; }
+    public BatchingMessageSource<T> maxBytes(long maxBytes, ToLongFunction<T> sizeExtractor) { this.maxBytes = maxBytes; this.sizeExtractor = sizeExtractor; return this; }
+
+    public static <P> BatchingMessageSource<P> of(MessageSource<P> delegate) { return new BatchingMessageSource(delegate); }
+
+    @Override
+    public Message<List<T>> receive() {
+        RuntimeException e = failure.getAndSet(null);
+        if(e != null) throw e;
+        long start = maxTime == null ? 0 : System.nanoTime();
+        long bytes = 0;
+        List<T> payloads = null;
+        List<MessageHeaders> headers = null;
+        Map<String, Object> merged = null;
+        while(true) {
+            Message<T> message;
+            try {
+                message = delegate.receive();
+            } catch(RuntimeException ex) {
+                if(payloads == null) throw ex;
+                // thrown by next call, read messages are returned now
+                failure.set(ex);
+                break;
+            }
+            if(message == null) break;
+            if(payloads == null) {
+                payloads = new ArrayList<>();
+                headers = new ArrayList<>();
+                merged = new HashMap<>();
+            }
+            payloads.add(message.getPayload());
+            headers.add(message.getHeaders());
+            merged.putAll(message.getHeaders());
+            if(payloads.size() >= maxMessages) break;
+            if((sizeExtractor != null) && (maxBytes > 0)) {
+                bytes += sizeExtractor.applyAsLong(message.getPayload());
+                if(bytes >= maxBytes) break;
+            }
+            if((maxTime != null) && (System.nanoTime() - start >= maxTime.toNanos())) break;
+        }
+        if(payloads == null) return null;
+        merged.remove(MessageHeaders.ID);
+        merged.remove(MessageHeaders.TIMESTAMP);
+        merged.put(BATCH_SIZE, payloads.size());
+        merged.put(HEADERS, headers);
+        return MessageBuilder.withPayload(payloads)
+                .copyHeaders(merged)
+                .build();
+    }
+
+    @Override
+    public IntegrationPatternType getIntegrationPatternType() {
+        return delegate.getIntegrationPatternType();
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import org.springframework.integration.IntegrationPatternType;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.messaging.Message;
+
+/**
+ * Drops messages with key which was already seen (idempotent receiver). Key
+ * is computed from message (payload by default). Duplicate messages are
+ * passed to onDuplicate callback (so they can be confirmed) and next
+ * message is read.
+ *
+ * Seen keys are stored in bounded cache (least recently used keys are
+ * removed). Key can be optionally forgotten after expireAfter time.
+ *
+ * For millions of keys optional bloom filter can be used. If key is not in
+ * cache (it was removed as least recently used) bloom filter decides if key
+ * was seen. Bloom filter has constant size, but new message can be dropped
+ * with given false positive probability. Bloom filter remembers about
+ * 2 x expectedKeys last keys. So with bloom filter duplicates are only
+ * probable and onDuplicate should not destroy message (log it or move it
+ * aside instead of delete).
+ *
+ * Bloom filter uses 64 bit hash of key value (not hashCode()). Supported key
+ * types are String, integral and floating numbers and UUID. Other keys are
+ * hashed by toString(), so toString() must be unique for different keys.
+ * Custom hash can be defined by keyHash(). Keys are compared by equals() in
+ * cache, so arrays can not be used as keys.
+ * <pre>
+ *   IdempotentMessageSource.of(source)
+ *       .keyByHeader(FileHeaders.FILENAME)
+ *       .maxSize(100_000)
+ *       .bloomFilter(10_000_000, 0.0001)
+ *       .onDuplicate(m -> fs.move("/data/duplicates", true));
+ * </pre>
+ * Key is marked as seen when message is received. If processing of message
+ * fails call forget() so message is accepted again.
+ * @author antons
+ */
+public class IdempotentMessageSource<T> implements MessageSource<T> {
+    private static final int STRIPES = 16;
+    private static final int MAX_SKIPPED = 100;
+
+    private MessageSource<T> delegate;
+    private Function<Message<T>, Object> keyExtractor = Message::getPayload;
+    private Consumer<Message<T>> onDuplicate;
+    private ToLongFunction<Object> keyHash = IdempotentMessageSource::hash;
+    private long expireAfter = 0;
+    private int maxSize = 100_000;
+
+    private Stripe[] stripes = stripes(maxSize);
+    private BloomFilter bloom;
+    private final LongAdder duplicates = new LongAdder();
+
+    public IdempotentMessageSource(MessageSource<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Computes key from message. Messages with null key are not checked.
+     * (default payload)
+     */
+    public IdempotentMessageSource<T> keyBy(Function<Message<T>, Object> keyExtractor) { this.keyExtractor = keyExtractor; return this; }
+    /**
+     * Uses header value as key.
+     */
+    public IdempotentMessageSource<T> keyByHeader(String header) { return keyBy(m -> m.getHeaders().get(header)); }
+    /**
+     * 64 bit hash of key used by bloom filter. Different keys should have
+     * different hashes. (default hash of String, number and UUID values,
+     * toString() of other keys)
+     */
+    public IdempotentMessageSource<T> keyHash(ToLongFunction<Object> keyHash) { this.keyHash = keyHash == null ? IdempotentMessageSource::hash : keyHash; return this; }
+    /**
+     * Called for each dropped message.
+     */
+    public IdempotentMessageSource<T> onDuplicate(Consumer<Message<T>> onDuplicate) { this.onDuplicate = onDuplicate; return this; }
+    /**
+     * Time after which key is forgotten. (default null - key is removed only
+     * as least recently used)
+     */
+    public IdempotentMessageSource<T> expireAfter(Duration value) { this.expireAfter = value == null ? 0 : value.toNanos(); return this; }
+    /**
+     * Max number of keys in cache. (default 100000)
+     */
+    public IdempotentMessageSource<T> maxSize(int value) {
+        this.maxSize = Math.max(STRIPES, value);
+        this.stripes = stripes(maxSize);
+        return this;
+    }
+    /**
+     * Bloom filter for keys removed from cache.
+     * @param expectedKeys number of keys in one bloom filter generation
+     * @param falsePositiveProbability probability that new key is considered as seen
+     */
+    public IdempotentMessageSource<T> bloomFilter(long expectedKeys, double falsePositiveProbability) {
+        if((falsePositiveProbability <= 0) || (falsePositiveProbability >= 1)) throw new IllegalArgumentException("wrong false positive probability " + falsePositiveProbability);
+        this.bloom = new BloomFilter(Math.max(expectedKeys, maxSize), falsePositiveProbability);
+        return this;
+    }
+
+    public static <P> IdempotentMessageSource<P> of(MessageSource<P> delegate) { return new IdempotentMessageSource(delegate); }
+
+    /**
+     * Number of dropped messages.
+     */
+    public long getDuplicateCount() { return duplicates.sum(); }
+
+    /**
+     * Number of keys in cache.
+     */
+    public int size() {
+        int size = 0;
+        for(Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Forgets key of given message, so message with the same key is
+     * accepted again.
+     */
+    public void forget(Message<T> message) {
+        if(message == null) return;
+        forgetKey(keyExtractor.apply(message));
+    }
+
+    /**
+     * Forgets given key. (Bloom filter can not remove keys, so key is kept
+     * in set of forgotten keys, which is checked before bloom filter, until
+     * key is received again.)
+     */
+    public void forgetKey(Object key) {
+        if(key == null) return;
+        Stripe stripe = stripe(key);
+        synchronized(stripe) {
+            stripe.remove(key);
+            if(bloom != null) stripe.forgotten.add(key);
+        }
+    }
+
+    @Override
+    public Message<T> receive() {
+        for(int i = 0; i < MAX_SKIPPED; i++) {
+            Message<T> message = delegate.receive();
+            if(message == null) return null;
+            Object key = keyExtractor.apply(message);
+            if((key == null) || firstSeen(key)) return message;
+            duplicates.increment();
+            if(onDuplicate != null) onDuplicate.accept(message);
+        }
+        return null;
+    }
+
+    @Override
+    public IntegrationPatternType getIntegrationPatternType() {
+        return delegate.getIntegrationPatternType();
+    }
+
+
+    private boolean firstSeen(Object key) {
+        long hash = keyHash.applyAsLong(key);
+        Stripe stripe = stripes[(int)(hash >>> 60) & (STRIPES - 1)];
+        BloomFilter b = bloom;
+        long now = System.nanoTime();
+        synchronized(stripe) {
+            Long seen = stripe.get(key);
+            boolean first;
+            if(seen != null) first = (expireAfter > 0) && (now - seen >= expireAfter);
+            else if(stripe.forgotten.remove(key)) first = true;
+            else first = (b == null) || !b.mightContain(hash);
+            if(first || (seen == null)) stripe.put(key, now);
+            if(b != null) b.add(hash);
+            return first;
+        }
+    }
+
+    private Stripe stripe(Object key) {
+        return stripes[(int)(keyHash.applyAsLong(key) >>> 60) & (STRIPES - 1)];
+    }
+
+    private static Stripe[] stripes(int maxSize) {
+        Stripe[] array = new Stripe[STRIPES];
+        for(int i = 0; i < STRIPES; i++) {
+            array[i] = new Stripe(maxSize / STRIPES);
+        }
+        return array;
+    }
+
+    /**
+     * 64 bit hash of key value. Numbers and UUIDs are mixed by bijective
+     * function (different values have different hashes), strings by
+     * FNV-1a.
+     */
+    static long hash(Object key) {
+        if((key instanceof Long) || (key instanceof Integer) || (key instanceof Short) || (key instanceof Byte)) {
+            return mix(((Number)key).longValue());
+        }
+        if((key instanceof Double) || (key instanceof Float)) {
+            return mix(Double.doubleToLongBits(((Number)key).doubleValue()));
+        }
+        if(key instanceof UUID) {
+            UUID uuid = (UUID)key;
+            return mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        }
+        String value = key.toString();
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    /**
+     * Part of cache - access ordered map with limited size. Forgotten keys
+     * are used only with bloom filter.
+     */
+    private static class Stripe extends LinkedHashMap<Object, Long> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        private final transient Set<Object> forgotten = new HashSet<>();
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = Math.max(1, maxSize);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+            return size() > maxSize;
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+    }
+
+
+    /**
+     * Bloom filter with two generations. When current generation has
+     * expectedKeys keys, older generation is dropped and new one is started.
+     * Bits are set by atomic operations.
+     */
+    private static class BloomFilter {
+        private final long expectedKeys;
+        private final int bits;
+        private final int hashes;
+        private volatile Generation current;
+        private volatile Generation previous;
+
+        BloomFilter(long expectedKeys, double fpp) {
+            this.expectedKeys = expectedKeys;
+            long m = (long)Math.ceil(-expectedKeys * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            this.bits = (int)Math.min(Math.max(64, m), Integer.MAX_VALUE - 64L);
+            this.hashes = Math.max(1, (int)Math.round((double)bits / expectedKeys * Math.log(2)));
+            this.current = new Generation(bits);
+        }
+
+        boolean mightContain(long hash) {
+            if(current.contains(hash, hashes)) return true;
+            Generation p = previous;
+            return (p != null) && p.contains(hash, hashes);
+        }
+
+        void add(long hash) {
+            Generation c = current;
+            // only new keys are counted
+            if(!c.add(hash, hashes)) return;
+            if(c.count.incrementAndGet() < expectedKeys) return;
+            synchronized(this) {
+                if(current != c) return;
+                previous = c;
+                current = new Generation(bits);
+            }
+        }
+    }
+
+    private static class Generation {
+        private final AtomicLongArray words;
+        private final int bits;
+        private final AtomicLong count = new AtomicLong();
+
+        Generation(int bits) {
+            this.words = new AtomicLongArray((bits + 63) / 64);
+            this.bits = bits;
+        }
+
+        boolean contains(long hash, int hashes) {
+            int h1 = (int)hash;
+            int h2 = (int)(hash >>> 32);
+            for(int i = 0; i < hashes; i++) {
+                int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                if((words.get(index >>> 6) & (1L << index)) == 0) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Sets bits of key.
+         * @return true if some bit was not set before
+         */
+        boolean add(long hash, int hashes) {
+            int h1 = (int)hash;
+            int h2 = (int)(hash >>> 32);
+            boolean changed = false;
+            for(int i = 0; i < hashes; i++) {
+                int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                long mask = 1L << index;
+                int word = index >>> 6;
+                while(true) {
+                    long w = words.get(word);
+                    if((w & mask) != 0) break;
+                    if(words.compareAndSet(word, w, w | mask)) {
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+            return changed;
+        }
+    }
+}
@@ -16,7 +16,7 @@
 package sk.antons.siutils.core;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
 import org.springframework.integration.IntegrationPatternType;
 import org.springframework.integration.core.MessageSource;
 import org.springframework.messaging.Message;
@@ -26,41 +26,95 @@ import org.springframework.messaging.Message;
  * Useful if you have messagesource which produces many messages at once and 
  * then long time none. And you want to fetch messages often in time whend they 
  * are prepared. 
+ * 
+ * Delay can be fixed (inactivityDelay) or adaptive (backoff). Adaptive delay 
+ * starts with initial value and it is multiplied after each next null 
+ * message up to max value. First non null message resets delay to initial 
+ * value. Optional jitter shortens each delay by random part (0.2 means up to 
+ * 20%), so more instances do not poll at same time. 
+ * 
+ * Delay can be finished early by wakeUp() (for example by file arrival event).
  * @author antons
  */
 public class InactivityDelayMessageSource<T> implements MessageSource<T> {
     
     private MessageSource<T> delegate;
     private Duration delay;
-    private LocalDateTime delayedTo;
+    private Duration maxDelay;
+    private double multiplier = 2;
+    private double jitter = 0;
+
+    private volatile boolean delayed = false;
+    private volatile long delayedTo;
+    private volatile long nextDelay = -1;
 
     public InactivityDelayMessageSource(MessageSource<T> delegate) {
         this.delegate = delegate;
     }
-    public InactivityDelayMessageSource inactivityDelay(Duration delay) { this.delay = delay; return this; }
+    public InactivityDelayMessageSource inactivityDelay(Duration delay) { this.delay = delay; this.maxDelay = null; return this; }
+    public InactivityDelayMessageSource backoff(Duration initial, Duration max) { this.delay = initial; this.maxDelay = max; return this; }
+    public InactivityDelayMessageSource backoffMultiplier(double multiplier) { this.multiplier = Math.max(1, multiplier); return this; }
+    public InactivityDelayMessageSource jitter(double jitter) { this.jitter = Math.min(1, Math.max(0, jitter)); return this; }
 
     public static <P> InactivityDelayMessageSource<P> of(MessageSource<P> delegate) { return new InactivityDelayMessageSource(delegate); }
 
     @Override
     public Message<T> receive() {
-        if(delayedTo != null) {
-            if(delayedTo.isAfter(LocalDateTime.now())) {
+        if(delayed) {
+            if(delayedTo - System.nanoTime() > 0) {
                 return null; // delayed message read
             } else {
-                delayedTo = null;
+                delayed = false;
             }
         }
         Message<T> message = delegate.receive();
         if(message == null) {
-            delayedTo = LocalDateTime.now().plus(delay);
+            long d = nextDelay();
+            if(d > 0) {
+                delayedTo = System.nanoTime() + d;
+                delayed = true;
+            }
+        } else {
+            nextDelay = -1;
         }
         return message;
     }
 
+    /**
+     * Finishes current delay, so next receive reads delegated message source.
+     * Adaptive delay is reset to initial value.
+     */
+    public void wakeUp() {
+        nextDelay = -1;
+        delayed = false;
+    }
+
+    /**
+     * Returns true if message source is in delay.
+     */
+    public boolean isDelayed() {
+        return delayed && (delayedTo - System.nanoTime() > 0);
+    }
+
     @Override
     public IntegrationPatternType getIntegrationPatternType() {
         return delegate.getIntegrationPatternType();
     }
 
+
+    private long nextDelay() {
+        if(delay == null) return 0;
+        long d = delay.toNanos();
+        if(maxDelay != null) {
+            long max = maxDelay.toNanos();
+            long current = nextDelay;
+            if(current >= 0) d = current;
+            double next = d * multiplier;
+            nextDelay = next >= max ? max : (long)next;
+            d = Math.min(d, max);
+        }
+        if(jitter > 0) d -= (long)(d * jitter * ThreadLocalRandom.current().nextDouble());
+        return d;
+    }
     
 }
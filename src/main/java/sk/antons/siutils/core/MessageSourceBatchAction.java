@@ -15,121 +15,337 @@
  */
 package sk.antons.siutils.core;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import org.springframework.integration.IntegrationPatternType;
 import org.springframework.integration.core.MessageSource;
+import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 
 /**
- * Batch is continuous sequence of non null messages given by delegated message 
+ * Batch is continuous sequence of non null messages given by delegated message
  * source. (sequence null, msg, msg, null, msg, null has two batches)
- * 
+ *
  * This builder allows you to define action called before or after such batch.
- * Action can be called as synchronous (default) or as asynchronous (new created 
- * thread). All throwables from action code are ignored. 
- * 
- * Start of batch is detected by non null message followed by null message. 
+ * Action can be called as synchronous (default) or as asynchronous (executed
+ * by executor). All throwables from action code are ignored.
+ *
+ * Start of batch is detected by non null message followed by null message.
  * Action is called before first batch message is returned.
  * (null, null, (action) msg, msg, null, (action) msg, null, null)
- * 
- * End of batch is detected when delegated mesage source return null after non 
- * null message, So mesage source must be triggered after batch to obtain null 
- * message. Action is called before first non null messafe after batch is 
+ *
+ * End of batch is detected when delegated mesage source return null after non
+ * null message, So mesage source must be triggered after batch to obtain null
+ * message. Action is called before first non null messafe after batch is
  * returned
  * (null, null, msg, msg, (action) null, msg, (action) null, null)
- * 
- * 
+ *
+ * Action is never executed in parallel with itself. Synchronous action
+ * triggered while it is running in other poller thread waits until the
+ * running one is finished (and then runs if its trigger was not already
+ * processed). Asynchronous action triggered while it is still running is
+ * coalesced with all such triggers to one next run. With debounce action is
+ * executed only when no batch boundary was detected for debounce time (so
+ * synchronous debounced action is not called before batch message).
+ *
+ * Action can consume BatchContext with number of messages, start and duration
+ * of batch (or of all coalesced batches).
+ *
+ * Batch boundaries are tracked atomically, so source can be used by more
+ * poller threads. Messages can be marked by BATCH_ID and BATCH_SEQUENCE
+ * headers (sequence starts from 1), so batch can be grouped downstream.
+ *
  * @author antons
  */
 public class MessageSourceBatchAction<T> {
-    
+    public static final String BATCH_ID = "MessageSourceBatchAction.BATCH_ID";
+    public static final String BATCH_SEQUENCE = "MessageSourceBatchAction.BATCH_SEQUENCE";
+
     private MessageSource<T> delegate;
-    private Runnable action;
+    private Consumer<BatchContext> action;
     private boolean async = false;
-
-    boolean lastNull = true;
+    private Executor executor;
+    private Duration debounce;
+    private boolean batchHeaders = false;
 
     public MessageSourceBatchAction(MessageSource<T> delegate) {
         this.delegate = delegate;
     }
-    
+
     public static <P> MessageSourceBatchAction<P> of(MessageSource<P> delegate) { return new MessageSourceBatchAction(delegate); }
-    
-    public MessageSourceBatchAction action(Runnable action) { this.action = action; return this; }
-    public MessageSourceBatchAction async(boolean async) { this.async = async; return this; }
+
+    public MessageSourceBatchAction<T> action(Runnable action) { this.action = action == null ? null : context -> action.run(); return this; }
+    /**
+     * Action with batch context.
+     */
+    public MessageSourceBatchAction<T> action(Consumer<BatchContext> action) { this.action = action; return this; }
+    /**
+     * Action is executed asynchronously. If no executor is defined one
+     * reusable daemon thread is used.
+     */
+    public MessageSourceBatchAction<T> async(boolean async) { this.async = async; return this; }
+    /**
+     * Executor for asynchronous actions. (sets async to true)
+     */
+    public MessageSourceBatchAction<T> executor(Executor executor) { this.executor = executor; this.async = executor != null; return this; }
+    /**
+     * Action is executed only if no other batch boundary is detected for
+     * given time. (default null - executed immediately)
+     * In synchronous mode action is executed by some later receive() call.
+     */
+    public MessageSourceBatchAction<T> debounce(Duration debounce) { this.debounce = debounce; return this; }
+    /**
+     * Adds BATCH_ID and BATCH_SEQUENCE headers to messages. (default false)
+     */
+    public MessageSourceBatchAction<T> batchHeaders(boolean batchHeaders) { this.batchHeaders = batchHeaders; return this; }
 
     public MessageSource<T> before() {
-        return BeforeBatchActionMessageSource.of(delegate)
-                .action(action)
-                .async(async);
+        return new BatchActionMessageSource(delegate, runner(), true, batchHeaders);
     }
-    
+
     public MessageSource<T> after() {
-        return AfterBatchActionMessageSource.of(delegate)
-                .action(action)
-                .async(async);
+        return new BatchActionMessageSource(delegate, runner(), false, batchHeaders);
     }
 
 
+    private BatchActionRunner runner() {
+        if(action == null) return null;
+        Executor ex = null;
+        if(async) {
+            ex = executor;
+            if(ex == null) ex = defaultExecutor();
+        }
+        return new BatchActionRunner(action, ex, debounce == null ? 0 : debounce.toNanos());
+    }
 
+    private Executor defaultExecutor = null;
+    private synchronized Executor defaultExecutor() {
+        if(defaultExecutor == null) {
+            ThreadPoolExecutor ex = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS
+                , new LinkedBlockingQueue<>()
+                , r -> {
+                    Thread t = new Thread(r, "MessageSourceBatchAction");
+                    t.setDaemon(true);
+                    return t;
+                });
+            ex.allowCoreThreadTimeOut(true);
+            defaultExecutor = ex;
+        }
+        return defaultExecutor;
+    }
 
 
     /**
-     * Batch is continuous sequence of non null messages given by message source.
-     * (sequence null, msg, msg, null, msg, null has two batches)
-     * 
-     * This wrapper allows you to define action called before such sequence is 
-     * started. 
-     * (sequence null, (action) msg, msg, null, (action) msg, null)
-     * 
-     * Action can be called synchronous (default) or asynchronous (new created thread).
-     * All throwables from action code are ignored. 
-     * 
-     * @author antons
+     * Information about batch (or coalesced batches) for which action
+     * is executed. Before action has no message counted (action is called
+     * before first message is returned).
      */
-    private static class BeforeBatchActionMessageSource<T> implements MessageSource<T> {
-        
-        private MessageSource<T> delegate;
-        private Runnable action;
-        private boolean async = false;
-
-        boolean lastNull = true;
+    public static class BatchContext {
+        private final String batchId;
+        private final long messageCount;
+        private final long startMillis;
+        private final long startNanos;
+        private final long endNanos;
+        private final int batchCount;
 
-        public BeforeBatchActionMessageSource(MessageSource<T> delegate) {
-            this.delegate = delegate;
+        BatchContext(String batchId, long messageCount, long startMillis, long startNanos, long endNanos, int batchCount) {
+            this.batchId = batchId;
+            this.messageCount = messageCount;
+            this.startMillis = startMillis;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.batchCount = batchCount;
         }
-        public BeforeBatchActionMessageSource action(Runnable action) { this.action = action; return this; }
-        public BeforeBatchActionMessageSource async(boolean async) { this.async = async; return this; }
 
-        public static <P> BeforeBatchActionMessageSource<P> of(MessageSource<P> delegate) { return new BeforeBatchActionMessageSource(delegate); }
+        /**
+         * Id of batch (of last one if batches are coalesced).
+         */
+        public String getBatchId() { return batchId; }
+        /**
+         * Number of messages in batch.
+         */
+        public long getMessageCount() { return messageCount; }
+        /**
+         * Time when first message of batch was received.
+         */
+        public Instant getStart() { return Instant.ofEpochMilli(startMillis); }
+        /**
+         * Time from first message to end of batch.
+         */
+        public Duration getDuration() { return Duration.ofNanos(endNanos - startNanos); }
+        /**
+         * Number of batches coalesced to this action run.
+         */
+        public int getBatchCount() { return batchCount; }
+
+        static BatchContext merge(BatchContext first, BatchContext second) {
+            if(first == null) return second;
+            if(second == null) return first;
+            return new BatchContext(second.batchId
+                , first.messageCount + second.messageCount
+                , Math.min(first.startMillis, second.startMillis)
+                , first.startNanos - second.startNanos < 0 ? first.startNanos : second.startNanos
+                , first.endNanos - second.endNanos > 0 ? first.endNanos : second.endNanos
+                , first.batchCount + second.batchCount);
+        }
 
         @Override
-        public Message<T> receive() {
-            Message<T> message = delegate.receive();
-            if(action != null) {
-                if(message != null) {
-                    if(lastNull) {
-                        if(async) {
-                            try {
-                                Thread t = new Thread(action);
-                                t.start();
-                            } catch(Throwable e) {
-                            }
-                        } else {
-                            try {
-                                action.run();
-                            } catch(Throwable e) {
-                            }
-                        }
-                    }
+        public String toString() {
+            return "BatchContext{id: " + batchId + ", messages: " + messageCount + ", start: " + getStart()
+                + ", duration: " + getDuration() + ", batches: " + batchCount + "}";
+        }
+    }
+
+
+    /**
+     * Executes action so it never runs in parallel with itself. Synchronous
+     * action is executed under lock by triggering thread. Asynchronous
+     * triggers received while action is running are coalesced to one next run.
+     */
+    private static class BatchActionRunner {
+        private static final int IDLE = 0;
+        private static final int RUNNING = 1;
+        private static final int PENDING = 2;
+
+        private final Consumer<BatchContext> action;
+        private final Executor executor;
+        private final long debounce;
+
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private final AtomicReference<BatchContext> pending = new AtomicReference<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long lastTrigger = 0;
+
+        BatchActionRunner(Consumer<BatchContext> action, Executor executor, long debounce) {
+            this.action = action;
+            this.executor = executor;
+            this.debounce = debounce;
+        }
+
+        void trigger(BatchContext context) {
+            pending.accumulateAndGet(context, BatchContext::merge);
+            lastTrigger = System.nanoTime();
+            if(executor == null) {
+                // synchronous debounced action is started by poll()
+                if(debounce <= 0) runInline(true);
+                return;
+            }
+            schedule();
+        }
+
+        /**
+         * Starts debounced synchronous action if it is due.
+         */
+        void poll() {
+            if((executor != null) || (debounce <= 0)) return;
+            if(pending.get() == null) return;
+            if(System.nanoTime() - lastTrigger < debounce) return;
+            runInline(false);
+        }
+
+        /**
+         * Runs pending action in current thread.
+         * @param wait true if thread waits for action running in other thread
+         */
+        private void runInline(boolean wait) {
+            if(wait) lock.lock();
+            else if(!lock.tryLock()) return;
+            try {
+                // trigger could be processed by thread which held the lock
+                accept(pending.getAndSet(null));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void schedule() {
+            while(true) {
+                int s = state.get();
+                if(s == PENDING) return;
+                if(s == RUNNING) {
+                    if(state.compareAndSet(RUNNING, PENDING)) return;
+                    continue;
                 }
+                if(state.compareAndSet(IDLE, RUNNING)) break;
+            }
+            try {
+                executor.execute(this::run);
+            } catch(RejectedExecutionException e) {
+                state.set(IDLE);
             }
-            lastNull = message == null;
-            return message;
         }
 
-        @Override
-        public IntegrationPatternType getIntegrationPatternType() {
-            return delegate.getIntegrationPatternType();
+        private void run() {
+            while(true) {
+                if(debounce > 0) quiet();
+                accept(pending.getAndSet(null));
+                if(state.compareAndSet(RUNNING, IDLE)) return;
+                // triggered while running
+                state.set(RUNNING);
+            }
+        }
+
+        private void accept(BatchContext context) {
+            if(context == null) return;
+            try {
+                action.accept(context);
+            } catch(Throwable e) {
+            }
+        }
+
+        private void quiet() {
+            while(true) {
+                long wait = lastTrigger + debounce - System.nanoTime();
+                if(wait <= 0) return;
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+
+    /**
+     * Currently open batch. Number of messages and closed flag are stored
+     * in one atomic value, so message can not be counted to already closed
+     * batch.
+     */
+    private static class Batch {
+        private static final long CLOSED = Long.MIN_VALUE;
+
+        final String id = UUID.randomUUID().toString();
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        private final AtomicLong state = new AtomicLong(0);
+
+        /**
+         * Counts message to batch.
+         * @return sequence of message in batch or -1 if batch is closed
+         */
+        long add() {
+            while(true) {
+                long s = state.get();
+                if((s & CLOSED) != 0) return -1;
+                if(state.compareAndSet(s, s + 1)) return s + 1;
+            }
+        }
+
+        /**
+         * Closes batch.
+         * @return number of messages in batch
+         */
+        long close() {
+            return state.getAndUpdate(s -> s | CLOSED) & ~CLOSED;
         }
     }
 
@@ -137,55 +353,72 @@ public class MessageSourceBatchAction<T> {
     /**
      * Batch is continuous sequence of non null messages given by message source.
      * (sequence null, msg, msg, null, msg, null has two batches)
-     * 
-     * This wrapper allows you to define action called after such sequence is 
-     * finished. End of batch is detected when delegated mesage source return null, 
-     * so mesage source must be triggered after batch to obtain null message. 
-     * (sequence null, msg, msg, (action) null, msg, (action) null)
-     * 
-     * Action can be called synchronous (default) or asynchronous (new created thread).
-     * All throwables from action code are ignored. 
-     * 
+     *
+     * This wrapper allows you to define action called before such sequence is
+     * started or after such sequence is finished.
+     * (sequence null, (before) msg, msg, (after) null, (before) msg, (after) null)
+     *
+     * End of batch is detected when delegated mesage source return null,
+     * so mesage source must be triggered after batch to obtain null message.
+     * Batch is opened by thread which moves current batch from null
+     * and closed by thread which moves it back to null.
+     *
      * @author antons
      */
-    private static class AfterBatchActionMessageSource<T> implements MessageSource<T> {
-        
+    private static class BatchActionMessageSource<T> implements MessageSource<T> {
+
         private MessageSource<T> delegate;
-        private Runnable action;
-        private boolean async = false;
+        private BatchActionRunner runner;
+        private boolean before;
+        private boolean batchHeaders;
 
-        boolean lastNull = true;
+        private final AtomicReference<Batch> current = new AtomicReference<>();
 
-        public AfterBatchActionMessageSource(MessageSource<T> delegate) {
+        public BatchActionMessageSource(MessageSource<T> delegate, BatchActionRunner runner, boolean before, boolean batchHeaders) {
             this.delegate = delegate;
+            this.runner = runner;
+            this.before = before;
+            this.batchHeaders = batchHeaders;
         }
-        public AfterBatchActionMessageSource action(Runnable action) { this.action = action; return this; }
-        public AfterBatchActionMessageSource async(boolean async) { this.async = async; return this; }
-        
-        public static <P> AfterBatchActionMessageSource<P> of(MessageSource<P> delegate) { return new AfterBatchActionMessageSource(delegate); }
 
         @Override
         public Message<T> receive() {
             Message<T> message = delegate.receive();
-            if(action != null) {
-                if(message == null) {
-                    if(!lastNull) {
-                        if(async) {
-                            try {
-                                Thread t = new Thread(action);
-                                t.start();
-                            } catch(Throwable e) {
-                            }
-                        } else {
-                            try {
-                                action.run();
-                            } catch(Throwable e) {
-                            }
+            if((runner == null) && !batchHeaders) return message;
+            if(message != null) {
+                Batch batch;
+                long sequence;
+                while(true) {
+                    batch = current.get();
+                    if(batch == null) {
+                        Batch created = new Batch();
+                        if(!current.compareAndSet(null, created)) continue;
+                        batch = created;
+                        if(before && (runner != null)) {
+                            runner.trigger(new BatchContext(batch.id, 0, batch.startMillis, batch.startNanos, batch.startNanos, 1));
                         }
                     }
+                    sequence = batch.add();
+                    if(sequence > 0) break;
+                    // closed by other thread - message belongs to next batch
+                    current.compareAndSet(batch, null);
+                }
+                if(batchHeaders) {
+                    message = MessageBuilder.fromMessage(message)
+                        .setHeader(BATCH_ID, batch.id)
+                        .setHeader(BATCH_SEQUENCE, sequence)
+                        .build();
+                }
+            } else {
+                Batch batch = current.getAndSet(null);
+                if(batch != null) {
+                    long count = batch.close();
+                    if(!before && (runner != null)) {
+                        runner.trigger(new BatchContext(batch.id, count, batch.startMillis, batch.startNanos, System.nanoTime(), 1));
+                    }
                 }
             }
-            lastNull = message == null;
+            if(runner != null) runner.poll();
             return message;
         }
 
@@ -193,7 +426,5 @@ public class MessageSourceBatchAction<T> {
         public IntegrationPatternType getIntegrationPatternType() {
             return delegate.getIntegrationPatternType();
         }
-
-        
     }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Condition for OnOffMessageSource. Result of condition can be cached for
+ * given time (ttl), so expensive conditions (like listing of directory) are
+ * not evaluated on each poll. Cached result can be invalidated by event
+ * (for example when file is written to watched directory).
+ *
+ * Condition can be computed from numeric metric (queue depth, number of
+ * pending files) with two watermarks. Condition is switched off when metric
+ * reaches high watermark and it is switched on again only when metric falls
+ * to low watermark. So it does not flap around one value.
+ * <pre>
+ *   OnOffMessageSource.of(source)
+ *       .condition(OnOffCondition.watermarks(() -> fs.state(0).getPreparedCount(), 100, 1000)
+ *                      .ttl(Duration.ofSeconds(5)));
+ * </pre>
+ * @author antons
+ */
+public class OnOffCondition implements BooleanSupplier {
+
+    private final BooleanSupplier condition;
+    private final LongSupplier metric;
+    private final long low;
+    private final long high;
+    private long ttl = 0;
+
+    private volatile boolean value = true;
+    private volatile boolean valid = false;
+    private volatile long evaluatedAt = 0;
+    private final AtomicLong version = new AtomicLong();
+
+    private OnOffCondition(BooleanSupplier condition, LongSupplier metric, long low, long high) {
+        this.condition = condition;
+        this.metric = metric;
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Wraps given condition.
+     */
+    public static OnOffCondition of(BooleanSupplier condition) {
+        if(condition == null) throw new NullPointerException("unable to create condition - null");
+        return new OnOffCondition(condition, null, 0, 0);
+    }
+
+    /**
+     * Condition is true until metric reaches high watermark and then false
+     * until metric falls to low watermark.
+     */
+    public static OnOffCondition watermarks(LongSupplier metric, long low, long high) {
+        if(metric == null) throw new NullPointerException("unable to create condition - no metric");
+        if(low > high) throw new IllegalArgumentException("low watermark " + low + " is greater than high watermark " + high);
+        return new OnOffCondition(null, metric, low, high);
+    }
+
+    /**
+     * Time for which evaluated result is reused. (default 0 - evaluated always)
+     */
+    public OnOffCondition ttl(Duration ttl) { this.ttl = ttl == null ? 0 : ttl.toNanos(); return this; }
+
+    /**
+     * Forces evaluation of condition in next call.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        this.valid = false;
+    }
+
+    @Override
+    public boolean getAsBoolean() {
+        if(valid && (System.nanoTime() - evaluatedAt < ttl)) return value;
+        synchronized(this) {
+            if(valid && (System.nanoTime() - evaluatedAt < ttl)) return value;
+            long ver = version.get();
+            boolean v = evaluate();
+            this.value = v;
+            this.evaluatedAt = System.nanoTime();
+            // result evaluated during invalidation is not cached
+            this.valid = ver == version.get();
+            return v;
+        }
+    }
+
+
+    private boolean evaluate() {
+        if(condition != null) return condition.getAsBoolean();
+        long m = metric.getAsLong();
+        if(value) return m < high;
+        return m <= low;
+    }
+
+}
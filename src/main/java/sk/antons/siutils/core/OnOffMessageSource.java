@@ -24,6 +24,8 @@ import org.springframework.messaging.Message;
  * Delegate MessageSource functionality to given messageSource only if given
  * condition return true; (if there is no condition functionality is delegated 
  * always)
+ * 
+ * Use OnOffCondition if condition is expensive or if it should not flap. 
  * @author antons
  */
 public class OnOffMessageSource<T> implements MessageSource<T> {
@@ -43,6 +45,13 @@ public class OnOffMessageSource<T> implements MessageSource<T> {
         return ((condition == null) || condition.getAsBoolean()) ? delegate.receive() : null;
     }
 
+    /**
+     * Invalidates cached result of condition (if condition is OnOffCondition).
+     */
+    public void invalidate() {
+        if(condition instanceof OnOffCondition) ((OnOffCondition)condition).invalidate();
+    }
+
     @Override
     public IntegrationPatternType getIntegrationPatternType() {
         return delegate.getIntegrationPatternType();
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.springframework.integration.IntegrationPatternType;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.messaging.Message;
+
+/**
+ * Reads messages from delegated message source in background thread into
+ * bounded queue. So receive() just polls the queue and never blocks poller
+ * thread by slow delegate.
+ *
+ * If delegated message source returns null reader waits idleDelay (or until
+ * wakeUp() is called). Throwables from delegate are ignored the same way.
+ *
+ * Sources which requires confirmation of each message (like
+ * FileByFileMessageSource) returns null until previous message is confirmed.
+ * Call wakeUp() after confirmation, so next message is read immediately.
+ * (FileByFileMessageSource with more leases can be prefetched deeper.)
+ * Messages which stays in queue after stop() are returned by drain(), so
+ * they can be confirmed or reset. If source is started again without drain,
+ * such messages are returned by receive() before newly prefetched ones.
+ * <pre>
+ *   PrefetchMessageSource.of(source)
+ *       .depth(32)
+ *       .threadFactory(Thread.ofVirtual().factory()); // java 21+
+ * </pre>
+ * @author antons
+ */
+public class PrefetchMessageSource<T> implements MessageSource<T>, AutoCloseable {
+
+    private MessageSource<T> delegate;
+    private int depth = 16;
+    private Duration idleDelay = Duration.ofMillis(100);
+    private ThreadFactory threadFactory = null;
+
+    private BlockingQueue<Message<T>> queue;
+    private final List<Message<T>> undelivered = new ArrayList<>();
+    private final List<Message<T>> pending = new ArrayList<>();
+    private volatile boolean redeliver = false;
+    private volatile boolean running = false;
+    private volatile boolean stopped = false;
+    private volatile Thread reader;
+    private Thread stopping;
+    private volatile Throwable lastError;
+
+    public PrefetchMessageSource(MessageSource<T> delegate) {
+        this.delegate = delegate;
+    }
+    public PrefetchMessageSource<T> depth(int depth) { this.depth = Math.max(1, depth); return this; }
+    public PrefetchMessageSource<T> idleDelay(Duration idleDelay) { this.idleDelay = idleDelay; return this; }
+    public PrefetchMessageSource<T> threadFactory(ThreadFactory threadFactory) { this.threadFactory = threadFactory; return this; }
+
+    public static <P> PrefetchMessageSource<P> of(MessageSource<P> delegate) { return new PrefetchMessageSource(delegate); }
+
+    public boolean isRunning() { return running; }
+    public Throwable getLastError() { return lastError; }
+    public int getPrefetched() { BlockingQueue<Message<T>> q = queue; return q == null ? 0 : q.size(); }
+
+    /**
+     * Returns prefetched message. Reader thread is started by first call
+     * (if it was not stopped). After restart messages left from previous
+     * run are returned first.
+     */
+    @Override
+    public Message<T> receive() {
+        if(!running && !stopped) start();
+        if(redeliver) {
+            synchronized(undelivered) {
+                if(!pending.isEmpty()) return pending.remove(0);
+                redeliver = false;
+            }
+        }
+        BlockingQueue<Message<T>> q = queue;
+        return q == null ? null : q.poll();
+    }
+
+    /**
+     * Starts reader thread. Messages left in queue and messages read by
+     * stopped reader are delivered by receive() before new messages.
+     */
+    public synchronized void start() {
+        if(running) return;
+        if(queue == null) queue = new ArrayBlockingQueue<>(depth);
+        synchronized(undelivered) {
+            queue.drainTo(pending);
+            pending.addAll(undelivered);
+            undelivered.clear();
+            redeliver = !pending.isEmpty();
+        }
+        running = true;
+        stopped = false;
+        Thread t = threadFactory == null ? new Thread(this::read) : threadFactory.newThread(this::read);
+        if(threadFactory == null) {
+            t.setName("PrefetchMessageSource");
+            t.setDaemon(true);
+        }
+        reader = t;
+        t.start();
+    }
+
+    /**
+     * Stops reader thread. Already prefetched messages stays in queue and
+     * can be received or drained.
+     * @param timeout max time to wait for reader thread (null for no limit)
+     * @return false if reader thread is still running (it is blocked in
+     * delegate and its message will be returned by next drain)
+     */
+    public boolean stop(Duration timeout) {
+        Thread t;
+        synchronized(this) {
+            running = false;
+            stopped = true;
+            if(reader != null) stopping = reader;
+            reader = null;
+            t = stopping;
+        }
+        if(t == null) return true;
+        LockSupport.unpark(t);
+        try {
+            if(timeout == null) t.join();
+            else t.join(Math.max(1, timeout.toMillis()));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(t.isAlive()) return false;
+        synchronized(this) {
+            if(stopping == t) stopping = null;
+        }
+        return true;
+    }
+
+    /**
+     * Stops reader thread and returns all prefetched messages. Waits until
+     * reader thread finishes reading from delegate.
+     */
+    public List<Message<T>> drain() {
+        return drain(null);
+    }
+
+    /**
+     * Stops reader thread and returns all prefetched messages.
+     * @param timeout max time to wait for reader thread (null for no limit).
+     * If reader is still blocked in delegate after timeout, its message is
+     * returned by next drain.
+     */
+    public List<Message<T>> drain(Duration timeout) {
+        stop(timeout);
+        List<Message<T>> list = new ArrayList<>();
+        synchronized(undelivered) {
+            list.addAll(pending);
+            pending.clear();
+            if(queue != null) queue.drainTo(list);
+            list.addAll(undelivered);
+            undelivered.clear();
+        }
+        return list;
+    }
+
+    /**
+     * Wakes reader waiting after null message.
+     */
+    public void wakeUp() {
+        Thread t = reader;
+        if(t != null) LockSupport.unpark(t);
+    }
+
+    @Override
+    public void close() {
+        stop(Duration.ofSeconds(1));
+    }
+
+    @Override
+    public IntegrationPatternType getIntegrationPatternType() {
+        return delegate.getIntegrationPatternType();
+    }
+
+
+    private boolean active() {
+        return running && (reader == Thread.currentThread());
+    }
+
+    private void read() {
+        while(active()) {
+            Message<T> message = null;
+            try {
+                message = delegate.receive();
+            } catch(Throwable e) {
+                lastError = e;
+            }
+            if(!active()) {
+                // stopped while delegate was read
+                if(message != null) undeliver(message);
+                return;
+            }
+            if(message == null) {
+                if(active() && (idleDelay != null)) LockSupport.parkNanos(this, idleDelay.toNanos());
+                continue;
+            }
+            try {
+                while(!queue.offer(message, 100, TimeUnit.MILLISECONDS)) {
+                    if(!active()) {
+                        undeliver(message);
+                        return;
+                    }
+                }
+            } catch(InterruptedException e) {
+                undeliver(message);
+                return;
+            }
+        }
+    }
+
+    private void undeliver(Message<T> message) {
+        synchronized(undelivered) {
+            if(running) {
+                // previous reader finished after restart
+                pending.add(message);
+                redeliver = true;
+            } else {
+                undelivered.add(message);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import org.springframework.integration.IntegrationPatternType;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.messaging.Message;
+
+/**
+ * Limits rate of messages read from delegated message source. Delegated
+ * source is not called if there is no free token - receive() returns null.
+ *
+ * Limit is defined as messages per second with burst (number of messages
+ * which can be read at once after idle time). Optionally limit for bytes per
+ * second can be defined. Size of message is known only after it is read, so
+ * bytes are charged after receive and next messages waits until bucket is
+ * not in debt.
+ *
+ * Buckets are lock free (one AtomicLong each) so source can be used by more
+ * poller threads.
+ * <pre>
+ *   RateLimitMessageSource.of(source)
+ *       .messagesPerSecond(50)
+ *       .burst(10)
+ *       .bytesPerSecond(10_000_000, file -> file.length());
+ * </pre>
+ * @author antons
+ */
+public class RateLimitMessageSource<T> implements MessageSource<T> {
+
+    private MessageSource<T> delegate;
+    private double messagesPerSecond = 0;
+    private long burst = 1;
+    private double bytesPerSecond = 0;
+    private long bytesBurst = 0;
+    private ToLongFunction<T> sizeExtractor;
+
+    private volatile Bucket messages;
+    private volatile Bucket bytes;
+    private final LongAdder throttled = new LongAdder();
+
+    public RateLimitMessageSource(MessageSource<T> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Max number of messages per second. (default 0 - no limit)
+     */
+    public RateLimitMessageSource<T> messagesPerSecond(double value) {
+        this.messagesPerSecond = value;
+        this.messages = Bucket.of(messagesPerSecond, burst);
+        return this;
+    }
+    /**
+     * Number of messages which can be read without delay. (default 1)
+     */
+    public RateLimitMessageSource<T> burst(long value) {
+        this.burst = Math.max(1, value);
+        this.messages = Bucket.of(messagesPerSecond, burst);
+        return this;
+    }
+    /**
+     * Max number of bytes per second. Size of message is computed by
+     * sizeExtractor from payload. (default 0 - no limit)
+     */
+    public RateLimitMessageSource<T> bytesPerSecond(double value, ToLongFunction<T> sizeExtractor) {
+        this.bytesPerSecond = value;
+        this.sizeExtractor = sizeExtractor;
+        this.bytes = sizeExtractor == null ? null : Bucket.of(bytesPerSecond, bytesBurst == 0 ? (long)bytesPerSecond : bytesBurst);
+        return this;
+    }
+    /**
+     * Number of bytes which can be read without delay. (default bytes per one second)
+     */
+    public RateLimitMessageSource<T> bytesBurst(long value) {
+        this.bytesBurst = Math.max(0, value);
+        this.bytes = sizeExtractor == null ? null : Bucket.of(bytesPerSecond, bytesBurst == 0 ? (long)bytesPerSecond : bytesBurst);
+        return this;
+    }
+
+    public static <P> RateLimitMessageSource<P> of(MessageSource<P> delegate) { return new RateLimitMessageSource(delegate); }
+
+    /**
+     * Number of receive calls which returns null because of limit.
+     */
+    public long getThrottledCount() { return throttled.sum(); }
+
+    @Override
+    public Message<T> receive() {
+        Bucket m = messages;
+        Bucket b = bytes;
+        if((b != null) && !b.available()) {
+            throttled.increment();
+            return null;
+        }
+        long cost = 0;
+        if(m != null) {
+            cost = m.acquire(1);
+            if(cost < 0) {
+                throttled.increment();
+                return null;
+            }
+        }
+        Message<T> message = null;
+        try {
+            message = delegate.receive();
+        } finally {
+            // token is not consumed if there is no message
+            if((message == null) && (m != null)) m.refund(cost);
+        }
+        if((message != null) && (b != null)) {
+            b.charge(sizeExtractor.applyAsLong(message.getPayload()));
+        }
+        return message;
+    }
+
+    @Override
+    public IntegrationPatternType getIntegrationPatternType() {
+        return delegate.getIntegrationPatternType();
+    }
+
+
+    /**
+     * Token bucket implemented as generic cell rate algorithm. Only
+     * theoretical arrival time is stored. Bucket is empty if it is not in the
+     * past and it is full if it is capacity (or more) in the past.
+     */
+    private static class Bucket {
+        private final double nanosPerToken;
+        private final long capacity;
+        private final AtomicLong tat;
+
+        private Bucket(double rate, long burst) {
+            this.nanosPerToken = 1_000_000_000d / rate;
+            this.capacity = cost(Math.max(1, burst));
+            this.tat = new AtomicLong(System.nanoTime() - capacity);
+        }
+
+        static Bucket of(double rate, long burst) {
+            if(rate <= 0) return null;
+            return new Bucket(rate, burst);
+        }
+
+        long cost(long tokens) {
+            double c = tokens * nanosPerToken;
+            return c >= Long.MAX_VALUE / 4 ? Long.MAX_VALUE / 4 : (long)c;
+        }
+
+        /**
+         * Takes tokens if they are available.
+         * @return consumed time or -1 if there is no token
+         */
+        long acquire(long tokens) {
+            long cost = cost(tokens);
+            while(true) {
+                long now = System.nanoTime();
+                long t = tat.get();
+                long next = Math.max(t, now - capacity) + cost;
+                if(next - now > 0) return -1;
+                if(tat.compareAndSet(t, next)) return cost;
+            }
+        }
+
+        void refund(long cost) {
+            if(cost <= 0) return;
+            tat.addAndGet(-cost);
+        }
+
+        /**
+         * Takes tokens even if bucket goes to debt.
+         */
+        void charge(long tokens) {
+            if(tokens <= 0) return;
+            long cost = cost(tokens);
+            while(true) {
+                long now = System.nanoTime();
+                long t = tat.get();
+                long next = Math.max(t, now - capacity) + cost;
+                if(tat.compareAndSet(t, next)) return;
+            }
+        }
+
+        boolean available() {
+            return tat.get() - System.nanoTime() < 0;
+        }
+    }
+
+}
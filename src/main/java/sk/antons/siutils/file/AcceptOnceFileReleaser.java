@@ -20,26 +20,38 @@ import org.springframework.messaging.Message;
 import org.springframework.messaging.MessagingException;
 import org.springframework.integration.file.FileHeaders;
 import org.springframework.integration.file.filters.AcceptOnceFileListFilter;
+import org.springframework.integration.file.filters.ResettableFileListFilter;
 import sk.antons.siutils.handler.MessageConsumer;
 
 /**
- * Releases file from AcceptOnceFileListFilter instance.
+ * Releases file from AcceptOnceFileListFilter instance (or any other
+ * resettable filter like LongHashAcceptOnceFileListFilter) and optionally from
+ * scanner which remembers accepted files.
  * @author antons
  */
 public class AcceptOnceFileReleaser extends MessageConsumer {
     
-    private AcceptOnceFileListFilter<File> acceptOnceFilter;
+    private ResettableFileListFilter<File> acceptOnceFilter;
+    private RealHeadDirectoryScanner scanner;
     
     public AcceptOnceFileReleaser(AcceptOnceFileListFilter<File> acceptOnceFilter) {
         this.acceptOnceFilter = acceptOnceFilter;
     }
+
+    public AcceptOnceFileReleaser(ResettableFileListFilter<File> acceptOnceFilter) {
+        this.acceptOnceFilter = acceptOnceFilter;
+    }
         
     public static AcceptOnceFileReleaser of(AcceptOnceFileListFilter acceptOnceFilter) { return new AcceptOnceFileReleaser(acceptOnceFilter); }
+    public static AcceptOnceFileReleaser of(ResettableFileListFilter<File> acceptOnceFilter) { return new AcceptOnceFileReleaser(acceptOnceFilter); }
+    public AcceptOnceFileReleaser scanner(RealHeadDirectoryScanner scanner) { this.scanner = scanner; return this; }
 
     @Override
     protected void accept(Message<?> message) throws MessagingException {
         File file = (File)message.getHeaders().get(FileHeaders.ORIGINAL_FILE);
-        if(file != null) acceptOnceFilter.remove(file);
+        if(file == null) return;
+        if(acceptOnceFilter != null) acceptOnceFilter.remove(file);
+        if(scanner != null) scanner.release(file);
     }
     
 }
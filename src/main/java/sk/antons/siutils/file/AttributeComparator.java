@@ -0,0 +1,146 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * Compares files by key extracted from file attributes (last modified time,
+ * size, ...). Files with same key are compared by name.
+ *
+ * Used as plain comparator it reads attributes of both files in each
+ * comparison. Use sort() (SortedDirectoryScanner does it automatically) to
+ * read attributes only once per file.
+ * <pre>
+ *   SortedDirectoryScanner.instance()
+ *       .comparator(AttributeComparator.lastModified());
+ * </pre>
+ * @author antons
+ */
+public class AttributeComparator<K extends Comparable<? super K>> implements Comparator<File> {
+
+    private final Function<BasicFileAttributes, K> key;
+    private boolean descending = false;
+
+    public AttributeComparator(Function<BasicFileAttributes, K> key) {
+        if(key == null) throw new NullPointerException("unable to compare files - no key");
+        this.key = key;
+    }
+    public static <P extends Comparable<? super P>> AttributeComparator<P> of(Function<BasicFileAttributes, P> key) { return new AttributeComparator<>(key); }
+
+    /**
+     * Compares files by last modified time.
+     */
+    public static AttributeComparator<Long> lastModified() { return new AttributeComparator<>(a -> a.lastModifiedTime().toMillis()); }
+    /**
+     * Compares files by creation time.
+     */
+    public static AttributeComparator<Long> creationTime() { return new AttributeComparator<>(a -> a.creationTime().toMillis()); }
+    /**
+     * Compares files by size.
+     */
+    public static AttributeComparator<Long> size() { return new AttributeComparator<>(BasicFileAttributes::size); }
+
+    /**
+     * Reverse order of keys. (files with same key are still ordered by name
+     * and files without key are still last)
+     */
+    public AttributeComparator<K> descending(boolean value) { this.descending = value; return this; }
+
+    /**
+     * Extracts key of given file. Returns null if attributes can not be read
+     * (file does not exist any more). Null keys are sorted last.
+     */
+    public K key(File file) {
+        if(file == null) return null;
+        try {
+            return key.apply(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int compare(File f1, File f2) {
+        return compare(f1, key(f1), f2, key(f2));
+    }
+
+    /**
+     * Sorts files. Attributes are read once per file and sort is done on
+     * prefetched keys.
+     * @param files sorted files
+     * @param parallelThreshold Arrays.parallelSort is used if number of files
+     * is greater or equal to this value
+     */
+    public void sort(File[] files, int parallelThreshold) {
+        if((files == null) || (files.length < 2)) return;
+        @SuppressWarnings("unchecked")
+        Keyed<K>[] keyed = (Keyed<K>[])new Keyed<?>[files.length];
+        for(int i = 0; i < files.length; i++) {
+            keyed[i] = new Keyed<>(files[i], key(files[i]));
+        }
+        Comparator<Keyed<K>> c = (k1, k2) -> compare(k1.file, k1.key, k2.file, k2.key);
+        if(files.length >= parallelThreshold) Arrays.parallelSort(keyed, c);
+        else Arrays.sort(keyed, c);
+        for(int i = 0; i < files.length; i++) {
+            files[i] = keyed[i].file;
+        }
+    }
+
+    /**
+     * Sorts files by given comparator. If comparator is AttributeComparator
+     * attributes are prefetched.
+     */
+    public static void sort(File[] files, Comparator<File> comparator, int parallelThreshold) {
+        if((files == null) || (files.length < 2)) return;
+        if(comparator instanceof AttributeComparator) {
+            ((AttributeComparator<?>)comparator).sort(files, parallelThreshold);
+        } else if(files.length >= parallelThreshold) {
+            Arrays.parallelSort(files, comparator);
+        } else {
+            Arrays.sort(files, comparator);
+        }
+    }
+
+
+    private int compare(File f1, K k1, File f2, K k2) {
+        int result;
+        if(k1 == null) result = k2 == null ? 0 : 1;
+        else if(k2 == null) result = -1;
+        else result = descending ? k2.compareTo(k1) : k1.compareTo(k2);
+        if(result != 0) return result;
+        String n1 = f1 == null ? "" : f1.getName();
+        String n2 = f2 == null ? "" : f2.getName();
+        return n1.compareTo(n2);
+    }
+
+    private static class Keyed<K> {
+        final File file;
+        final K key;
+
+        Keyed(File file, K key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Sorted in-memory view of regular files in one directory. Index is seeded by
+ * one directory listing and kept current by WatchService events. Whole
+ * directory is rescanned periodically and after each overflow event, so lost
+ * events are repaired in next reconciliation.
+ *
+ * Comparator must give stable result for a file during its life in directory
+ * (for example name based comparators). Files with same comparator result are
+ * ordered by name.
+ *
+ * @author antons
+ */
+public class DirectoryIndex implements AutoCloseable {
+
+    private final File directory;
+    private final Comparator<File> comparator;
+    private final TreeSet<File> files;
+    private Duration rescanInterval = Duration.ofMinutes(5);
+
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile boolean running = false;
+    private volatile boolean rescanRequested = false;
+
+    public DirectoryIndex(File directory, Comparator<File> comparator) {
+        if(directory == null) throw new NullPointerException("unable to index directory - null");
+        this.directory = directory;
+        this.comparator = comparator == null
+                ? FileByFileMessageSource.FileNameComparator.instance()
+                : comparator.thenComparing(FileByFileMessageSource.FileNameComparator.instance());
+        this.files = new TreeSet<>(this.comparator);
+    }
+    public static DirectoryIndex of(File directory, Comparator<File> comparator) { return new DirectoryIndex(directory, comparator); }
+
+    public DirectoryIndex rescanInterval(Duration value) { this.rescanInterval = value; return this; }
+
+    public File getDirectory() { return directory; }
+    public boolean isRunning() { return running; }
+
+    /**
+     * Seeds index by directory listing and starts watcher thread.
+     */
+    public synchronized DirectoryIndex start() {
+        if(running) return this;
+        try {
+            this.watchService = directory.toPath().getFileSystem().newWatchService();
+            directory.toPath().register(watchService
+                    , StandardWatchEventKinds.ENTRY_CREATE
+                    , StandardWatchEventKinds.ENTRY_DELETE);
+        } catch(IOException e) {
+            throw new IllegalStateException("unable to watch directory " + directory, e);
+        }
+        rescan();
+        this.running = true;
+        this.watcher = new Thread(this::watch, "DirectoryIndex-" + directory.getName());
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+        return this;
+    }
+
+    /**
+     * Stops watcher thread and clears index.
+     */
+    @Override
+    public void close() {
+        WatchService ws = null;
+        synchronized(this) {
+            if(!running) return;
+            running = false;
+            ws = this.watchService;
+            this.watchService = null;
+            this.watcher = null;
+            files.clear();
+        }
+        try {
+            ws.close();
+        } catch(Exception e) {
+        }
+    }
+
+    /**
+     * Requests rescan of whole directory. Rescan is done asynchronously by
+     * watcher thread.
+     */
+    public void requestRescan() {
+        this.rescanRequested = true;
+    }
+
+    /**
+     * Replaces index content by current directory listing.
+     */
+    public void rescan() {
+        File[] children = directory.listFiles();
+        synchronized(this) {
+            files.clear();
+            if(children != null) {
+                for(File child : children) {
+                    if(child.isFile()) files.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns first file (in comparator order) which still exists and is not
+     * skipped by given predicate. Files which no longer exist are removed from
+     * index.
+     * @param skip predicate for files which should be ignored (can be null)
+     * @return first file or null if there is no such file
+     */
+    public synchronized File first(Predicate<File> skip) {
+        Iterator<File> iter = files.iterator();
+        while(iter.hasNext()) {
+            File file = iter.next();
+            if((skip != null) && skip.test(file)) continue;
+            if(file.exists()) return file;
+            iter.remove();
+        }
+        return null;
+    }
+
+    /**
+     * Returns first count files in comparator order.
+     */
+    public synchronized List<File> head(int count) {
+        List<File> list = new ArrayList<>(Math.min(Math.max(count, 0), files.size()));
+        Iterator<File> iter = files.iterator();
+        while(iter.hasNext() && (list.size() < count)) {
+            list.add(iter.next());
+        }
+        return list;
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public synchronized void add(File file) {
+        if(file != null) files.add(file);
+    }
+
+    public synchronized void remove(File file) {
+        if(file != null) files.remove(file);
+    }
+
+
+    private void watch() {
+        long interval = rescanInterval == null ? 0 : rescanInterval.toNanos();
+        long nextRescan = System.nanoTime() + interval;
+        while(running) {
+            try {
+                WatchService ws = this.watchService;
+                if(ws == null) break;
+                WatchKey key = interval > 0
+                    ? ws.poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextRescan - System.nanoTime())), TimeUnit.MILLISECONDS)
+                    : ws.poll(1, TimeUnit.SECONDS);
+                if(key != null) {
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        handle(event);
+                    }
+                    if(!key.reset()) {
+                        // directory is not accessible any more
+                        rescanRequested = true;
+                    }
+                }
+                if(rescanRequested || ((interval > 0) && (System.nanoTime() - nextRescan >= 0))) {
+                    rescanRequested = false;
+                    rescan();
+                    nextRescan = System.nanoTime() + interval;
+                }
+            } catch(ClosedWatchServiceException e) {
+                break;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch(Exception e) {
+                rescanRequested = true;
+            }
+        }
+    }
+
+    private void handle(WatchEvent<?> event) {
+        WatchEvent.Kind<?> kind = event.kind();
+        if(kind == StandardWatchEventKinds.OVERFLOW) {
+            rescanRequested = true;
+            return;
+        }
+        Object context = event.context();
+        if(!(context instanceof Path)) return;
+        File file = new File(directory, ((Path)context).toString());
+        if(kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            if(file.isFile()) add(file);
+        } else if(kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            remove(file);
+        }
+    }
+
+}
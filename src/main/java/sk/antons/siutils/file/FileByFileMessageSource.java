@@ -6,12 +6,20 @@ package sk.antons.siutils.file;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import org.springframework.integration.core.MessageSource;
 import org.springframework.integration.support.DefaultMessageBuilderFactory;
@@ -20,28 +28,95 @@ import org.springframework.messaging.Message;
 
 /**
  * Reads files from given directory one by one.
+ *
+ * By default each receive lists and sorts input directory. In indexed mode
+ * (see {@link #indexed(boolean)}) files are kept in sorted {@link DirectoryIndex}
+ * which is updated by WatchService events, so selecting next file does not
+ * touch directory. Call {@link #close()} to stop index watcher.
+ *
+ * By default only one file is processed at a time. With {@link #leases(int)}
+ * more files can be provided concurrently (in comparator order). Each message
+ * contains LEASE header and file must be confirmed by delete(lease),
+ * move(lease) or reset(lease).
+ *
+ * With {@link #asyncCompletion(boolean)} delete and move operations are
+ * processed by background executor in batches. Use {@link #flush(Duration)}
+ * before shutdown to wait for them.
  * @author antons
  */
-public class FileByFileMessageSource implements MessageSource<File> {
+public class FileByFileMessageSource implements MessageSource<File>, AutoCloseable {
     public static final String FILE = "FileByFileMessageSource.FILE";
+    public static final String LEASE = "FileByFileMessageSource.LEASE";
 
 
     private File inputDirectory;
     private File backupDirectory;
     private Comparator<File> comparator = FileNameComparator.instance();
 
-    private File currentFile = null;
-    private boolean processing = false;
-    private LocalDateTime processingFrom = null;
+    private final Map<String, Lease> leases = new LinkedHashMap<>();
+    private final Set<File> leasedFiles = new HashSet<>();
+    private int maxLeases = 1;
+    private long leaseCounter = 0;
     private boolean locked = false;
 
+    private Duration stateMaxAge = null;
+    private volatile Prepared prepared = null;
+
+    private boolean asyncCompletion = false;
+    private Executor completionExecutor = null;
+    private int completionBatchSize = 100;
+    private BiConsumer<File, Exception> completionErrorHandler = null;
+    private FileCompletionQueue completions = null;
+    private ExecutorService ownCompletionExecutor = null;
+
+    private boolean indexed = false;
+    private Duration rescanInterval = Duration.ofMinutes(5);
+    private DirectoryIndex index = null;
+
     public FileByFileMessageSource(String directory) { this.inputDirectory = createDirectory(directory); }
     public static FileByFileMessageSource of(String directory) { return new FileByFileMessageSource(directory); }
 
     public FileByFileMessageSource backupDirectory(String directory) { this.backupDirectory = createDirectory(directory); return this; }
     public FileByFileMessageSource comparator(Comparator<File> value) { this.comparator = value; return this; }
+    public FileByFileMessageSource indexed(boolean value) { this.indexed = value; return this; }
+    public FileByFileMessageSource rescanInterval(Duration value) { this.rescanInterval = value; return this; }
+    /**
+     * Max age of cached directory listing used by state(). (default null -
+     * directory is listed on each state() call)
+     */
+    public FileByFileMessageSource stateMaxAge(Duration value) { this.stateMaxAge = value; return this; }
+    /**
+     * Number of files which can be processed concurrently. (default 1)
+     * If more than one lease is allowed, files must be confirmed by methods
+     * with lease parameter (value of LEASE header).
+     */
+    public FileByFileMessageSource leases(int value) {
+        if(value < 1) throw new IllegalArgumentException("number of leases must be positive " + value);
+        this.maxLeases = value;
+        return this;
+    }
 
-    public boolean isProcessing() { return processing; }
+    /**
+     * Delete and move operations are only enqueued and processed in 
+     * background thread. Next file can be provided immediately, file is not 
+     * provided again until its operation is finished. (default false)
+     */
+    public FileByFileMessageSource asyncCompletion(boolean value) { this.asyncCompletion = value; return this; }
+    /**
+     * Executor for asynchronous completions. (default own single daemon thread)
+     */
+    public FileByFileMessageSource completionExecutor(Executor value) { this.completionExecutor = value; return this; }
+    /**
+     * Max number of asynchronous completions processed in one batch. (default 100)
+     */
+    public FileByFileMessageSource completionBatchSize(int value) { this.completionBatchSize = value; return this; }
+    /**
+     * Handler of failed asynchronous completions. File of failed completion
+     * is provided again.
+     */
+    public FileByFileMessageSource completionErrorHandler(BiConsumer<File, Exception> value) { this.completionErrorHandler = value; return this; }
+
+    public synchronized boolean isProcessing() { return !leases.isEmpty(); }
     public boolean isLocked() { return locked; }
     public void setLocked(boolean value) { this.locked = value; }
 
@@ -51,17 +126,20 @@ public class FileByFileMessageSource implements MessageSource<File> {
      * default they are sorted by name.)
      *
      * Each returned file must be confirmed before another file is provided.
+     * (In multi lease mode only given number of files can be unconfirmed.)
      * @return message with file or null if previous file is not confirmed or
      * no file exists.
      */
     @Override
     public Message<File> receive() {
-        File f = nextFile();
-        if(f == null) return null;
+        Lease lease = nextLease();
+        if(lease == null) return null;
+        File f = lease.file;
         return getMessageBuilderFactory()
                         .withPayload(f)
                         .copyHeaders(Map.of(
                                 FILE, f
+                                , LEASE, lease.token
                             ))
                         .setCorrelationId(f.getName())
                         .build();
@@ -71,13 +149,15 @@ public class FileByFileMessageSource implements MessageSource<File> {
      * Delete last provided file from directory and allow next file to be provided.
      */
     public void delete() {
-        try {
-            if((currentFile != null) && currentFile.exists()) { currentFile.delete(); }
-        } catch(Exception e) {
-            throw new IllegalStateException(e);
-        } finally {
-            cleanFile();
-        }
+        delete(currentLease());
+    }
+
+    /**
+     * Delete leased file from directory and allow next file to be provided.
+     * @param lease value of LEASE header
+     */
+    public void delete(String lease) {
+        delete(lease(lease));
     }
 
     /**
@@ -85,28 +165,31 @@ public class FileByFileMessageSource implements MessageSource<File> {
      * provided file from directory and allow next file to be provided.
      */
     public void handleCurrentFile(Consumer<File> consumer) {
-        if((currentFile != null) && currentFile.exists()) { currentFile.delete(); } {
-            consumer.accept(currentFile);
-        }
-        delete();
+        handleFile(currentLease(), consumer);
+    }
+
+    /**
+     * Provide leased file for custom processing and afterwards delete it
+     * from directory and allow next file to be provided.
+     * @param lease value of LEASE header
+     */
+    public void handleFile(String lease, Consumer<File> consumer) {
+        handleFile(lease(lease), consumer);
     }
 
     /**
      * Move last provided file to specified backup directory and allow next file to be provided.
      */
     public void move() {
-        if(backupDirectory == null) throw new IllegalStateException("unable to move file, backupDirectory is null");
-        try {
-            if((currentFile != null) && currentFile.exists()) {
-                File destination = new File(backupDirectory.getAbsolutePath()
-                        +  "/" + currentFile.getName());
-                    Files.move(currentFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-        } catch(Exception e) {
-            throw new IllegalStateException(e);
-        } finally {
-            cleanFile();
-        }
+        move(currentLease());
+    }
+
+    /**
+     * Move leased file to specified backup directory and allow next file to be provided.
+     * @param lease value of LEASE header
+     */
+    public void move(String lease) {
+        move(lease(lease));
     }
 
     /**
@@ -115,29 +198,32 @@ public class FileByFileMessageSource implements MessageSource<File> {
      * @param ensureDirectory create directory if not exists
      */
     public void move(String directory, boolean ensureDirectory) {
-        if(directory == null) throw new IllegalStateException("unable to move file, backupDirectory is null");
-        try {
-            if((currentFile != null) && currentFile.exists()) {
-                if(ensureDirectory) {
-                    File f = new File(directory);
-                    if(!f.exists()) f.mkdirs();
-                }
-                File destination = new File(directory
-                        +  "/" + currentFile.getName());
-                    Files.move(currentFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            }
-        } catch(Exception e) {
-            throw new IllegalStateException(e);
-        } finally {
-            cleanFile();
-        }
+        move(currentLease(), directory, ensureDirectory);
+    }
+
+    /**
+     * Move leased file to given directory and allow next file to be provided.
+     * @param lease value of LEASE header
+     * @param directory directory where file should be transferred.
+     * @param ensureDirectory create directory if not exists
+     */
+    public void move(String lease, String directory, boolean ensureDirectory) {
+        move(lease(lease), directory, ensureDirectory);
     }
 
     /**
      * Allow next file to be provided.
      */
     public void reset() {
-        cleanFile();
+        release(currentLease());
+    }
+
+    /**
+     * Releases lease without touching file. File will be provided again.
+     * @param lease value of LEASE header
+     */
+    public void reset(String lease) {
+        release(lease(lease));
     }
 
     /**
@@ -155,44 +241,261 @@ public class FileByFileMessageSource implements MessageSource<File> {
     }
 
     /**
-     * Returns state of message source
+     * Returns state of message source with all prepared files.
      */
     public State state() {
+        return state(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns state of message source. Only first limit prepared files (in
+     * comparator order) are returned, number of all prepared files is in
+     * preparedCount. Directory part of state is reused if it is not older
+     * than stateMaxAge. In indexed mode directory is not listed at all.
+     * @param limit max number of returned prepared file names
+     */
+    public State state(int limit) {
         State state = new State();
-        File file = this.currentFile;
-        state.currentFile = file == null ? null : file.getName();
+        synchronized(this) {
+            state.leasedFiles = new ArrayList<>(leases.size());
+            for(Lease lease : leases.values()) {
+                if(state.currentFile == null) {
+                    state.currentFile = lease.file.getName();
+                    state.processingFrom = lease.from;
+                }
+                state.leasedFiles.add(lease.file.getName());
+            }
+            state.processing = !leases.isEmpty();
+        }
         state.locked = this.locked;
-        state.processing = this.processing;
-        state.processingFrom = this.processingFrom;
         try {
-            File[] ff = inputDirectory.listFiles();
-            if(ff != null) {
-                Arrays.sort(ff, this.comparator);
-                state.preparedFiles = new ArrayList<>();
-                for(File file1 : ff) {
-                    state.preparedFiles.add(file1.getName());
-                }
+            Prepared prepared = prepared(Math.max(limit, 0));
+            if(prepared != null) {
+                state.preparedCount = prepared.count;
+                state.preparedFiles = prepared.names.size() > limit
+                    ? new ArrayList<>(prepared.names.subList(0, limit))
+                    : new ArrayList<>(prepared.names);
             }
         } catch(Exception e) {
         }
         return state;
     }
 
+    /**
+     * Waits until all asynchronous completions are finished.
+     * @param timeout max wait time (null for no limit)
+     * @return true if there is no pending completion
+     */
+    public boolean flush(Duration timeout) {
+        FileCompletionQueue queue;
+        synchronized(this) {
+            queue = this.completions;
+        }
+        return (queue == null) || queue.flush(timeout);
+    }
+
+    /**
+     * Number of not finished asynchronous completions.
+     */
+    public int getPendingCompletions() {
+        FileCompletionQueue queue;
+        synchronized(this) {
+            queue = this.completions;
+        }
+        return queue == null ? 0 : queue.pending();
+    }
+
+    /**
+     * Stops directory index (if indexed mode is used) and own completion
+     * executor. (enqueued completions are still processed)
+     */
+    @Override
+    public synchronized void close() {
+        if(index != null) {
+            index.close();
+            index = null;
+        }
+        if(ownCompletionExecutor != null) {
+            ownCompletionExecutor.shutdown();
+        }
+    }
+
+
 
 
+    private void delete(Lease lease) {
+        if(lease == null) return;
+        if(asyncCompletion) {
+            complete(lease, null);
+            return;
+        }
+        try {
+            if(lease.file.exists()) { lease.file.delete(); }
+        } catch(Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            release(lease);
+        }
+    }
+
+    private void handleFile(Lease lease, Consumer<File> consumer) {
+        if((lease != null) && lease.file.exists()) {
+            consumer.accept(lease.file);
+        }
+        delete(lease);
+    }
+
+    private void move(Lease lease) {
+        if(backupDirectory == null) throw new IllegalStateException("unable to move file, backupDirectory is null");
+        move(lease, backupDirectory.getAbsolutePath(), false);
+    }
 
+    private void move(Lease lease, String directory, boolean ensureDirectory) {
+        if(directory == null) throw new IllegalStateException("unable to move file, backupDirectory is null");
+        if(lease == null) return;
+        File file = lease.file;
+        if(asyncCompletion) {
+            if(ensureDirectory) {
+                File f = new File(directory);
+                if(!f.exists()) f.mkdirs();
+            }
+            complete(lease, new File(directory
+                        +  "/" + file.getName()));
+            return;
+        }
+        try {
+            if(file.exists()) {
+                if(ensureDirectory) {
+                    File f = new File(directory);
+                    if(!f.exists()) f.mkdirs();
+                }
+                File destination = new File(directory
+                        +  "/" + file.getName());
+                    Files.move(file.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch(Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            release(lease);
+        }
+    }
 
-    private synchronized File nextFile() {
-        if(processing) return null;
+    /**
+     * Releases lease and enqueues completion. File stays in leasedFiles
+     * (so it is not provided again) until completion is finished.
+     */
+    private void complete(Lease lease, File destination) {
+        FileCompletionQueue queue;
+        synchronized(this) {
+            if(leases.remove(lease.token) == null) return;
+            if(completions == null) {
+                Executor executor = completionExecutor;
+                if(executor == null) {
+                    ownCompletionExecutor = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "FileByFileMessageSource-completion");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    executor = ownCompletionExecutor;
+                }
+                completions = new FileCompletionQueue(executor, completionBatchSize, this::completed);
+            }
+            queue = completions;
+        }
+        if(destination == null) queue.delete(lease.file);
+        else queue.move(lease.file, destination);
+    }
+
+    private void completed(List<FileCompletionQueue.Completion> batch) {
+        synchronized(this) {
+            for(FileCompletionQueue.Completion completion : batch) {
+                leasedFiles.remove(completion.file);
+            }
+        }
+        if(completionErrorHandler == null) return;
+        for(FileCompletionQueue.Completion completion : batch) {
+            if(completion.error != null) completionErrorHandler.accept(completion.file, completion.error);
+        }
+    }
+
+    private Prepared prepared(int limit) {
+        Prepared p = this.prepared;
+        if((p != null)
+            && (stateMaxAge != null)
+            && ((p.count <= p.names.size()) || (limit <= p.names.size()))
+            && (System.nanoTime() - p.created < stateMaxAge.toNanos())) return p;
+        DirectoryIndex idx = null;
+        synchronized(this) {
+            if(indexed) idx = index;
+        }
+        if(idx != null) {
+            List<File> head = idx.head(limit);
+            p = new Prepared(idx.size(), names(head));
+        } else {
+            File[] ff = inputDirectory.listFiles();
+            if(ff == null) return null;
+            HeadCollector<File> collector = HeadCollector.of(comparator == null ? FileNameComparator.instance() : comparator, limit);
+            for(File f : ff) {
+                collector.add(f);
+            }
+            p = new Prepared(collector.count(), names(collector.toList()));
+        }
+        if(stateMaxAge != null) this.prepared = p;
+        return p;
+    }
+
+    private static List<String> names(List<File> files) {
+        List<String> names = new ArrayList<>(files.size());
+        for(File file : files) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    private synchronized Lease lease(String token) {
+        if(token == null) return null;
+        return leases.get(token);
+    }
+
+    private synchronized Lease currentLease() {
+        if(maxLeases > 1) throw new IllegalStateException("multiple leases are allowed, use methods with lease parameter");
+        return leases.isEmpty() ? null : leases.values().iterator().next();
+    }
+
+    private synchronized void release(Lease lease) {
+        if(lease == null) return;
+        if(leases.remove(lease.token) != null) leasedFiles.remove(lease.file);
+    }
+
+    private synchronized Lease nextLease() {
+        if(leases.size() >= maxLeases) return null;
         if(locked) return null;
+        File file = indexed ? nextIndexedFile() : nextListedFile();
+        if(file == null) return null;
+        Lease lease = new Lease(Long.toString(++leaseCounter), file, LocalDateTime.now());
+        leases.put(lease.token, lease);
+        leasedFiles.add(file);
+        return lease;
+    }
+
+    private File nextListedFile() {
         File[] children = inputDirectory.listFiles();
         if(children == null) return null;
         if(children.length == 0) return null;
         Arrays.sort(children, comparator);
-        this.processing = true;
-        this.processingFrom = LocalDateTime.now();
-        this.currentFile = children[0];
-        return this.currentFile;
+        for(File child : children) {
+            if(!leasedFiles.contains(child)) return child;
+        }
+        return null;
+    }
+
+    private File nextIndexedFile() {
+        if(index == null) {
+            index = DirectoryIndex.of(inputDirectory, comparator)
+                .rescanInterval(rescanInterval)
+                .start();
+        }
+        return index.first(leasedFiles.isEmpty() ? null : leasedFiles::contains);
     }
 
 
@@ -202,12 +505,6 @@ public class FileByFileMessageSource implements MessageSource<File> {
         return this.messageBuilderFactory;
     }
 
-    private void cleanFile() {
-        this.currentFile = null;
-        this.processingFrom = null;
-        this.processing = false;
-    }
-
 
     private static File createDirectory(String directory) {
         if(directory == null) throw new NullPointerException("unablde to create directory - null");
@@ -236,18 +533,45 @@ public class FileByFileMessageSource implements MessageSource<File> {
 
     }
 
+    private static class Lease {
+        final String token;
+        final File file;
+        final LocalDateTime from;
+
+        Lease(String token, File file, LocalDateTime from) {
+            this.token = token;
+            this.file = file;
+            this.from = from;
+        }
+    }
+
+    private static class Prepared {
+        final long created = System.nanoTime();
+        final int count;
+        final List<String> names;
+
+        Prepared(int count, List<String> names) {
+            this.count = count;
+            this.names = names;
+        }
+    }
+
     public static class State {
         boolean locked;
         boolean processing;
         LocalDateTime processingFrom;
         String currentFile;
+        List<String> leasedFiles;
         List<String> preparedFiles;
+        int preparedCount;
 
         public boolean isLocked() { return locked; }
         public boolean isProcessing() { return processing; }
         public LocalDateTime getProcessingFrom() { return processingFrom; }
         public String getCurrentFile() { return currentFile; }
+        public List<String> getLeasedFiles() { return leasedFiles; }
         public List<String> getPreparedFiles() { return preparedFiles; }
+        public int getPreparedCount() { return preparedCount; }
 
 
     }
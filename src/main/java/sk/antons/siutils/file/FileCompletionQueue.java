@@ -0,0 +1,200 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Queue of file deletes and moves processed in background in batches.
+ * Moves are done as atomic rename. If it is not possible (destination is on
+ * other file system) file is copied by FileChannel.transferTo to temporary
+ * file in destination directory, which is synced and renamed.
+ * @author antons
+ */
+class FileCompletionQueue {
+
+    private final Executor executor;
+    private final int batchSize;
+    private final Consumer<List<Completion>> done;
+
+    private final ConcurrentLinkedQueue<Completion> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final Object monitor = new Object();
+    private int pending = 0;
+
+    FileCompletionQueue(Executor executor, int batchSize, Consumer<List<Completion>> done) {
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+        this.done = done;
+    }
+
+    /**
+     * Enqueues delete of file.
+     */
+    void delete(File file) {
+        submit(new Completion(file, null));
+    }
+
+    /**
+     * Enqueues move of file to destination (full destination file name).
+     */
+    void move(File file, File destination) {
+        submit(new Completion(file, destination));
+    }
+
+    /**
+     * Waits until all enqueued completions are processed.
+     * @param timeout max wait time (null for no limit)
+     * @return true if all completions are processed
+     */
+    boolean flush(Duration timeout) {
+        long deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+        synchronized(monitor) {
+            while(pending > 0) {
+                try {
+                    if(timeout == null) {
+                        monitor.wait();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if(remaining <= 0) return false;
+                        monitor.wait(Math.max(1, remaining / 1000000));
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    int pending() {
+        synchronized(monitor) {
+            return pending;
+        }
+    }
+
+
+    private void submit(Completion completion) {
+        synchronized(monitor) {
+            pending++;
+        }
+        queue.offer(completion);
+        schedule();
+    }
+
+    private void schedule() {
+        if(!draining.compareAndSet(false, true)) return;
+        try {
+            executor.execute(this::drain);
+        } catch(RejectedExecutionException e) {
+            // executor is stopped - process in caller thread
+            drain();
+        }
+    }
+
+    private void drain() {
+        try {
+            while(true) {
+                List<Completion> batch = new ArrayList<>(batchSize);
+                Completion completion;
+                while((batch.size() < batchSize) && ((completion = queue.poll()) != null)) {
+                    batch.add(completion);
+                }
+                if(batch.isEmpty()) break;
+                for(Completion c : batch) {
+                    c.process();
+                }
+                try {
+                    if(done != null) done.accept(batch);
+                } catch(Throwable e) {
+                }
+                synchronized(monitor) {
+                    pending -= batch.size();
+                    monitor.notifyAll();
+                }
+            }
+        } finally {
+            draining.set(false);
+        }
+        if(!queue.isEmpty()) schedule();
+    }
+
+    /**
+     * Moves file to destination. Uses atomic rename or copy if rename is
+     * not possible.
+     */
+    static void moveFile(File file, File destination) throws IOException {
+        try {
+            Files.move(file.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            transfer(file, destination);
+        }
+    }
+
+    private static void transfer(File file, File destination) throws IOException {
+        File tmp = new File(destination.getParentFile(), "." + destination.getName() + ".part");
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while(position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if(transferred <= 0) break;
+                position += transferred;
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(file.toPath());
+    }
+
+    static class Completion {
+        final File file;
+        final File destination;
+        Exception error;
+
+        Completion(File file, File destination) {
+            this.file = file;
+            this.destination = destination;
+        }
+
+        void process() {
+            try {
+                if(!file.exists()) return;
+                if(destination == null) Files.delete(file.toPath());
+                else moveFile(file, destination);
+            } catch(Exception e) {
+                this.error = e;
+            }
+        }
+    }
+
+}
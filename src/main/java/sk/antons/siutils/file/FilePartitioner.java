@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Splits files between members (application instances reading same
+ * directory) by consistent hashing of file names. Each member is placed on
+ * hash ring by several virtual nodes, so change of members moves only small
+ * part of files.
+ *
+ * Files of absent member are taken over by next present member on the ring.
+ * Presence of members is checked by given predicate or by heartbeat files.
+ * Each member touches its heartbeat file (hidden file .partition-member in
+ * heartbeat directory) and member is absent if its heartbeat is older than
+ * heartbeat timeout.
+ *
+ * <pre>
+ *   RealHeadDirectoryScanner scanner = new RealHeadDirectoryScanner(100)
+ *       .partitioner(FilePartitioner.of("node1", List.of("node1", "node2", "node3"))
+ *                      .heartbeat("/data/inbox", Duration.ofMinutes(1)));
+ * </pre>
+ * @author antons
+ */
+public class FilePartitioner {
+    public static final String HEARTBEAT_PREFIX = ".partition-";
+
+    private final String member;
+    private final List<String> members;
+    private int virtualNodes = 128;
+    private Predicate<String> alive = null;
+    private File heartbeatDirectory = null;
+    private long heartbeatTimeout = 0;
+
+    private volatile Ring ring;
+    private volatile Set<String> present;
+    private long lastHeartbeat = 0;
+
+    public FilePartitioner(String member, Collection<String> members) {
+        if(member == null) throw new NullPointerException("unable to partition files - no member");
+        if((members == null) || !members.contains(member)) throw new IllegalArgumentException("member " + member + " is not in members " + members);
+        this.member = member;
+        this.members = new ArrayList<>(new HashSet<>(members));
+        this.present = new HashSet<>(this.members);
+        this.ring = new Ring(this.members, virtualNodes);
+    }
+    public static FilePartitioner of(String member, Collection<String> members) { return new FilePartitioner(member, members); }
+
+    /**
+     * Number of ring points per member. (default 128)
+     */
+    public FilePartitioner virtualNodes(int value) {
+        this.virtualNodes = Math.max(1, value);
+        this.ring = new Ring(members, virtualNodes);
+        return this;
+    }
+    /**
+     * Custom presence check of members.
+     */
+    public FilePartitioner alive(Predicate<String> value) { this.alive = value; return this; }
+    /**
+     * Presence of members is checked by heartbeat files in given directory.
+     * @param directory directory for heartbeat files (can be scanned directory)
+     * @param timeout member is absent if its heartbeat is older than timeout
+     */
+    public FilePartitioner heartbeat(String directory, Duration timeout) {
+        this.heartbeatDirectory = directory == null ? null : new File(directory);
+        this.heartbeatTimeout = timeout == null ? 0 : timeout.toMillis();
+        return this;
+    }
+
+    public String getMember() { return member; }
+    public List<String> getMembers() { return members; }
+    public Set<String> getPresentMembers() { return present; }
+
+    /**
+     * Touches own heartbeat and checks presence of other members. Scanner
+     * calls it before each directory listing.
+     */
+    public synchronized void refresh() {
+        long now = System.currentTimeMillis();
+        if((heartbeatDirectory != null) && (now - lastHeartbeat > heartbeatTimeout / 3)) {
+            touch(heartbeatFile(member), now);
+            lastHeartbeat = now;
+        }
+        Set<String> set = new HashSet<>();
+        for(String m : members) {
+            if(m.equals(member) || isAlive(m, now)) set.add(m);
+        }
+        this.present = set;
+    }
+
+    /**
+     * Returns true if file with given name belongs to this member.
+     */
+    public boolean owns(String name) {
+        if(name == null) return false;
+        if(name.startsWith(HEARTBEAT_PREFIX)) return false;
+        return member.equals(owner(name));
+    }
+
+    /**
+     * Returns present member responsible for file with given name. Ring and
+     * present members are immutable, so lookup is lock free.
+     */
+    public String owner(String name) {
+        Ring ring = this.ring;
+        Set<String> present = this.present;
+        int pos = Arrays.binarySearch(ring.points, hash(name));
+        if(pos < 0) pos = -pos - 1;
+        for(int i = 0; i < ring.points.length; i++) {
+            String owner = ring.owners[(pos + i) % ring.points.length];
+            if(present.contains(owner)) return owner;
+        }
+        return member;
+    }
+
+
+    private boolean isAlive(String m, long now) {
+        if(alive != null) return alive.test(m);
+        if(heartbeatDirectory == null) return true;
+        File file = heartbeatFile(m);
+        long modified = file.lastModified();
+        return (modified > 0) && (now - modified <= heartbeatTimeout);
+    }
+
+    private File heartbeatFile(String m) {
+        return new File(heartbeatDirectory, HEARTBEAT_PREFIX + m);
+    }
+
+    private static void touch(File file, long now) {
+        try {
+            if(!file.exists()) file.createNewFile();
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(now));
+        } catch(IOException e) {
+            throw new IllegalStateException("unable to touch heartbeat " + file, e);
+        }
+    }
+
+
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Sorted ring points and their members. It is built when partitioner is
+     * configured and never changed.
+     */
+    private static class Ring {
+        private final long[] points;
+        private final String[] owners;
+
+        Ring(List<String> members, int virtualNodes) {
+            int size = members.size() * virtualNodes;
+            long[] hashes = new long[size];
+            String[] names = new String[size];
+            int i = 0;
+            for(String m : members) {
+                for(int v = 0; v < virtualNodes; v++) {
+                    hashes[i] = hash(m + "#" + v);
+                    names[i] = m;
+                    i++;
+                }
+            }
+            Integer[] order = new Integer[size];
+            for(int j = 0; j < size; j++) order[j] = j;
+            Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+            this.points = new long[size];
+            this.owners = new String[size];
+            for(int j = 0; j < size; j++) {
+                points[j] = hashes[order[j]];
+                owners[j] = names[order[j]];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects given number of smallest items (by comparator) from sequence of
+ * items. Only limit items are kept in memory (bounded heap), so selecting
+ * head of n items costs O(n log limit) instead of sorting all items.
+ * @author antons
+ */
+public class HeadCollector<T> {
+
+    private final Comparator<? super T> comparator;
+    private final int limit;
+    private final PriorityQueue<T> heap;
+    private int count = 0;
+
+    public HeadCollector(Comparator<? super T> comparator, int limit) {
+        if(comparator == null) throw new NullPointerException("unable to collect head - no comparator");
+        if(limit < 0) throw new IllegalArgumentException("limit must not be negative " + limit);
+        this.comparator = comparator;
+        this.limit = limit;
+        this.heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, comparator.reversed());
+    }
+    public static <P> HeadCollector<P> of(Comparator<? super P> comparator, int limit) { return new HeadCollector<>(comparator, limit); }
+
+    /**
+     * Adds item to collector. Item is kept only if it belongs to current head.
+     */
+    public void add(T item) {
+        count++;
+        if(limit == 0) return;
+        if(heap.size() < limit) {
+            heap.offer(item);
+        } else if(comparator.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.offer(item);
+        }
+    }
+
+    /**
+     * Adds all items from other collector. (items which was added to other
+     * collector but not kept there are only counted)
+     */
+    public void addAll(HeadCollector<T> other) {
+        if(other == null) return;
+        for(T item : other.heap) {
+            add(item);
+        }
+        count += other.count - other.heap.size();
+    }
+
+    /**
+     * Number of all items added to collector.
+     */
+    public int count() { return count; }
+
+    /**
+     * Number of items kept in head.
+     */
+    public int size() { return heap.size(); }
+
+    public int limit() { return limit; }
+
+    /**
+     * Returns collected head items sorted by comparator.
+     */
+    public List<T> toList() {
+        List<T> list = new ArrayList<>(heap);
+        Collections.sort(list, comparator);
+        return list;
+    }
+
+}
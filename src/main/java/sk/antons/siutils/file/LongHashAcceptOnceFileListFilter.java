@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.springframework.integration.file.filters.AbstractFileListFilter;
+import org.springframework.integration.file.filters.ResettableFileListFilter;
+import org.springframework.integration.file.filters.ReversibleFileListFilter;
+
+/**
+ * Accept once filter which stores 64 bit hashes of absolute file paths
+ * instead of File instances. Hashes are stored in open addressing table
+ * (linear probing) with 24 bytes per slot (hash, accept stamp and access
+ * stamp). Table has power of two slots and it is at most 3/4 full, so one
+ * remembered file costs 32 - 64 bytes. Table can be allocated off heap.
+ *
+ * Number of remembered files is limited by capacity. If table is full, least
+ * recently accessed entries are evicted (approximately, about one eighth of
+ * table). With maxAge files accepted before given time are accepted again
+ * (even if they are listed in each poll).
+ *
+ * Two different paths with same 64 bit hash are considered as same file.
+ * @author antons
+ */
+public class LongHashAcceptOnceFileListFilter extends AbstractFileListFilter<File>
+        implements ReversibleFileListFilter<File>, ResettableFileListFilter<File> {
+
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int SLOT = 3;
+
+    private final int capacity;
+    private boolean offHeap = false;
+    private long maxAge = 0;
+
+    private LongBuffer table;
+    private int mask;
+    private int size = 0;
+    private long lastStamp = 0;
+
+    public LongHashAcceptOnceFileListFilter(int capacity) {
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be positive " + capacity);
+        this.capacity = capacity;
+    }
+    public static LongHashAcceptOnceFileListFilter of(int capacity) { return new LongHashAcceptOnceFileListFilter(capacity); }
+
+    /**
+     * Allocate table off heap. Must be set before first use. (default false)
+     */
+    public LongHashAcceptOnceFileListFilter offHeap(boolean value) { this.offHeap = value; return this; }
+    /**
+     * Files accepted before given time are accepted again. Time is measured
+     * from acceptance, not from last access. (default null - no time eviction)
+     */
+    public LongHashAcceptOnceFileListFilter maxAge(Duration value) { this.maxAge = value == null ? 0 : value.toMillis() * 1000; return this; }
+
+    public int getCapacity() { return capacity; }
+    public synchronized int size() { return size; }
+
+    @Override
+    public synchronized boolean accept(File file) {
+        if(file == null) return false;
+        ensureTable();
+        long key = key(file);
+        long stamp = stamp();
+        int i = slot(key);
+        while(true) {
+            long k = table.get(i * SLOT);
+            if(k == 0) break;
+            if(k == key) {
+                table.put(i * SLOT + 2, stamp);
+                if((maxAge <= 0) || (stamp - table.get(i * SLOT + 1) <= maxAge)) return false;
+                table.put(i * SLOT + 1, stamp);
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        if(size >= capacity) {
+            evict(stamp);
+            i = slot(key);
+            while(table.get(i * SLOT) != 0) i = (i + 1) & mask;
+        }
+        put(i, key, stamp, stamp);
+        size++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(File file) {
+        if((file == null) || (table == null)) return false;
+        long key = key(file);
+        int i = slot(key);
+        while(true) {
+            long k = table.get(i * SLOT);
+            if(k == 0) return false;
+            if(k == key) break;
+            i = (i + 1) & mask;
+        }
+        delete(i);
+        return true;
+    }
+
+    /**
+     * Removes entry from slot by backward shift deletion, so following
+     * entries of probe sequence are still reachable.
+     */
+    private void delete(int i) {
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            long k = table.get(j * SLOT);
+            if(k == 0) break;
+            int home = slot(k);
+            boolean movable = (j > i) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j));
+            if(movable) {
+                put(i, k, table.get(j * SLOT + 1), table.get(j * SLOT + 2));
+                i = j;
+            }
+        }
+        put(i, 0, 0, 0);
+        size--;
+    }
+
+    @Override
+    public synchronized void rollback(File file, List<File> files) {
+        boolean rollingBack = false;
+        for(File f : files) {
+            if(f.equals(file)) rollingBack = true;
+            if(rollingBack) remove(f);
+        }
+    }
+
+    /**
+     * Forget all accepted files.
+     */
+    public synchronized void clear() {
+        if(table == null) return;
+        for(int i = 0; i < table.capacity(); i++) {
+            table.put(i, 0);
+        }
+        size = 0;
+    }
+
+
+    private void ensureTable() {
+        if(table != null) return;
+        long slots = Long.highestOneBit(Math.max(2L, ((long)capacity * 4 / 3) + 1) - 1) << 1;
+        if(slots > (1 << 26)) throw new IllegalStateException("capacity too large " + capacity);
+        this.mask = (int)slots - 1;
+        this.table = allocate((int)slots);
+    }
+
+    private LongBuffer allocate(int slots) {
+        return offHeap
+            ? ByteBuffer.allocateDirect(slots * SLOT * 8).asLongBuffer()
+            : LongBuffer.allocate(slots * SLOT);
+    }
+
+    private void put(int i, long key, long accepted, long accessed) {
+        table.put(i * SLOT, key);
+        table.put(i * SLOT + 1, accepted);
+        table.put(i * SLOT + 2, accessed);
+    }
+
+    /**
+     * Removes expired entries and approximately eighth of least recently
+     * accessed entries. Entries are deleted in place (no new buffer is
+     * allocated).
+     */
+    private void evict(long now) {
+        long expired = maxAge > 0 ? now - maxAge : Long.MIN_VALUE;
+        long cutoff = Long.MIN_VALUE;
+        long[] sample = new long[SAMPLE_SIZE];
+        int sampled = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int tries = 0; (tries < SAMPLE_SIZE * 4) && (sampled < SAMPLE_SIZE); tries++) {
+            int i = random.nextInt(mask + 1);
+            if(table.get(i * SLOT) != 0) sample[sampled++] = table.get(i * SLOT + 2);
+        }
+        if(sampled > 0) {
+            Arrays.sort(sample, 0, sampled);
+            cutoff = sample[sampled / 8];
+        }
+        int i = 0;
+        while(i <= mask) {
+            boolean evicted = (table.get(i * SLOT) != 0)
+                && ((table.get(i * SLOT + 1) <= expired) || (table.get(i * SLOT + 2) <= cutoff));
+            // deletion shifts next entry to this slot, so slot is checked again
+            if(evicted) delete(i);
+            else i++;
+        }
+    }
+
+    /**
+     * Increasing access stamp. It is wall clock time in milliseconds
+     * multiplied by 1000 (increased by one for each access in same millisecond).
+     */
+    private long stamp() {
+        long now = System.currentTimeMillis() * 1000;
+        lastStamp = Math.max(lastStamp + 1, now);
+        return lastStamp;
+    }
+
+    private int slot(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int)h & mask;
+    }
+
+    private static long key(File file) {
+        String path = file.getAbsolutePath();
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < path.length(); i++) {
+            h ^= path.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Set of 64 bit hashes (of file paths) stored in open addressing table
+ * (linear probing). Table has power of two slots and it is at most 3/4
+ * full, so one value costs 11 - 22 bytes. Value 0 is not stored (use
+ * hash(String) for keys).
+ *
+ * contains() is optimistic read without locking, changes are done under
+ * write lock.
+ * @author antons
+ */
+class LongHashSet {
+    private static final int MIN_SLOTS = 16;
+
+    private final StampedLock lock = new StampedLock();
+    private long[] table = new long[MIN_SLOTS];
+    private int size = 0;
+
+    boolean contains(long value) {
+        long stamp = lock.tryOptimisticRead();
+        if(stamp != 0) {
+            boolean found = find(table, value) >= 0;
+            if(lock.validate(stamp)) return found;
+        }
+        stamp = lock.readLock();
+        try {
+            return find(table, value) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Adds value.
+     * @return true if value was not in set
+     */
+    boolean add(long value) {
+        long stamp = lock.writeLock();
+        try {
+            if(find(table, value) >= 0) return false;
+            if((size + 1) * 4L > table.length * 3L) table = rehash(table, table.length * 2);
+            insert(table, value);
+            size++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes value.
+     * @return true if value was in set
+     */
+    boolean remove(long value) {
+        long stamp = lock.writeLock();
+        try {
+            int i = find(table, value);
+            if(i < 0) return false;
+            delete(i);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes values which are not in other set.
+     */
+    void retainAll(LongHashSet other) {
+        long stamp = lock.writeLock();
+        try {
+            int i = 0;
+            while(i < table.length) {
+                long value = table[i];
+                // deletion shifts next value to this slot, so slot is checked again
+                if((value != 0) && !other.contains(value)) delete(i);
+                else i++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = new long[MIN_SLOTS];
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of value (never 0).
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+
+    /**
+     * Returns slot of value or -1. Probing is limited by table length, so
+     * inconsistent optimistic read can not loop forever.
+     */
+    private static int find(long[] table, long value) {
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        for(int n = 0; n < table.length; n++) {
+            long v = table[i];
+            if(v == 0) return -1;
+            if(v == value) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static void insert(long[] table, long value) {
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while(table[i] != 0) i = (i + 1) & mask;
+        table[i] = value;
+    }
+
+    private static long[] rehash(long[] table, int slots) {
+        long[] result = new long[slots];
+        for(long value : table) {
+            if(value != 0) insert(result, value);
+        }
+        return result;
+    }
+
+    /**
+     * Backward shift deletion, so following values of probe sequence are
+     * still reachable.
+     */
+    private void delete(int i) {
+        int mask = table.length - 1;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            long v = table[j];
+            if(v == 0) break;
+            int home = slot(v, mask);
+            boolean movable = (j > i) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j));
+            if(movable) {
+                table[i] = v;
+                i = j;
+            }
+        }
+        table[i] = 0;
+        size--;
+    }
+
+    private static int slot(long value, int mask) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int)h & mask;
+    }
+
+}
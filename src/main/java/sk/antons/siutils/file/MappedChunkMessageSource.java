@@ -0,0 +1,336 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.integration.support.DefaultMessageBuilderFactory;
+import org.springframework.integration.support.MessageBuilderFactory;
+import org.springframework.messaging.Message;
+
+/**
+ * Reads files provided by FileByFileMessageSource as sequence of chunks.
+ * File is memory mapped (by windows of mapWindow size) and each message
+ * contains read only ByteBuffer view of one chunk - no data are copied.
+ * Chunk is fixed size part of file (chunkSize) or one record terminated by
+ * delimiter (delimiter is not part of chunk).
+ *
+ * Each chunk must be acknowledged by ack(). Only maxUnacknowledged chunks
+ * can be unacknowledged, receive returns null otherwise. File can be deleted
+ * or moved only when last chunk was provided and all chunks were
+ * acknowledged.
+ * <pre>
+ *   MappedChunkMessageSource source = MappedChunkMessageSource.of(fileSource)
+ *       .delimiter((byte)'\n');
+ *   ...
+ *   String line = MappedChunkMessageSource.asString(message.getPayload(), StandardCharsets.UTF_8);
+ *   source.ack(message);
+ *   if(source.isComplete()) source.move();
+ * </pre>
+ * Record longer than mapWindow is split into more chunks.
+ * @author antons
+ */
+public class MappedChunkMessageSource implements MessageSource<ByteBuffer>, AutoCloseable {
+    public static final String FILE = FileByFileMessageSource.FILE;
+    public static final String CHUNK_INDEX = "MappedChunkMessageSource.CHUNK_INDEX";
+    public static final String CHUNK_OFFSET = "MappedChunkMessageSource.CHUNK_OFFSET";
+    public static final String LAST_CHUNK = "MappedChunkMessageSource.LAST_CHUNK";
+
+    private final FileByFileMessageSource delegate;
+    private int chunkSize = 1024 * 1024;
+    private Byte delimiter = null;
+    private long mapWindow = 64L * 1024 * 1024;
+    private int maxUnacknowledged = 16;
+
+    private File file = null;
+    private String lease = null;
+    private FileChannel channel = null;
+    private long size = 0;
+    private long position = 0;
+    private MappedByteBuffer window = null;
+    private long windowStart = 0;
+    private long chunkIndex = 0;
+    private boolean lastProvided = false;
+    private final Set<Long> unacknowledged = new HashSet<>();
+
+    public MappedChunkMessageSource(FileByFileMessageSource delegate) {
+        if(delegate == null) throw new NullPointerException("unable to read chunks - no file source");
+        this.delegate = delegate;
+    }
+    public static MappedChunkMessageSource of(FileByFileMessageSource delegate) { return new MappedChunkMessageSource(delegate); }
+
+    /**
+     * Size of fixed size chunks. Used if no delimiter is defined. (default 1MB)
+     */
+    public MappedChunkMessageSource chunkSize(int value) {
+        if(value < 1) throw new IllegalArgumentException("chunk size must be positive " + value);
+        this.chunkSize = value;
+        return this;
+    }
+    /**
+     * Record delimiter. (default null - fixed size chunks are used)
+     */
+    public MappedChunkMessageSource delimiter(Byte value) { this.delimiter = value; return this; }
+    /**
+     * Size of mapped part of file. (default 64MB)
+     */
+    public MappedChunkMessageSource mapWindow(long value) {
+        if((value < 1) || (value > Integer.MAX_VALUE)) throw new IllegalArgumentException("wrong map window size " + value);
+        this.mapWindow = value;
+        return this;
+    }
+    /**
+     * Max number of provided and not acknowledged chunks. (default 16)
+     */
+    public MappedChunkMessageSource maxUnacknowledged(int value) { this.maxUnacknowledged = Math.max(1, value); return this; }
+
+    /**
+     * Returns next chunk of current file (or first chunk of next file).
+     * @return message with chunk or null if there is no file, too many chunks
+     * are not acknowledged or all chunks of current file were provided.
+     */
+    @Override
+    public synchronized Message<ByteBuffer> receive() {
+        if(file == null) {
+            if(!open()) return null;
+        }
+        if(lastProvided) return null;
+        if(unacknowledged.size() >= maxUnacknowledged) return null;
+        try {
+            long offset = position;
+            ByteBuffer chunk = delimiter == null ? nextFixedChunk() : nextRecord();
+            long index = chunkIndex++;
+            lastProvided = position >= size;
+            unacknowledged.add(index);
+            return getMessageBuilderFactory()
+                .withPayload(chunk)
+                .copyHeaders(Map.of(
+                        FILE, file
+                        , FileByFileMessageSource.LEASE, lease
+                        , CHUNK_INDEX, index
+                        , CHUNK_OFFSET, offset
+                        , LAST_CHUNK, lastProvided
+                    ))
+                .setCorrelationId(file.getName())
+                .setSequenceNumber((int)Math.min(index + 1, Integer.MAX_VALUE))
+                .build();
+        } catch(IOException e) {
+            throw new IllegalStateException("unable to read chunk of " + file, e);
+        }
+    }
+
+    /**
+     * Acknowledges chunk given by message.
+     */
+    public void ack(Message<?> message) {
+        if(message == null) return;
+        if(!(message.getHeaders().get(CHUNK_INDEX) instanceof Long)) return;
+        synchronized(this) {
+            if((file == null) || !file.equals(message.getHeaders().get(FILE))) return;
+            unacknowledged.remove((Long)message.getHeaders().get(CHUNK_INDEX));
+        }
+    }
+
+    /**
+     * Acknowledges chunk of current file with given index.
+     */
+    public synchronized void ack(long index) {
+        unacknowledged.remove(index);
+    }
+
+    /**
+     * Returns true if all chunks of current file were provided and acknowledged.
+     */
+    public synchronized boolean isComplete() {
+        return (file != null) && lastProvided && unacknowledged.isEmpty();
+    }
+
+    /**
+     * Deletes current file. All chunks must be acknowledged.
+     */
+    public void delete() {
+        delegate.delete(finish());
+    }
+
+    /**
+     * Moves current file to backup directory. All chunks must be acknowledged.
+     */
+    public void move() {
+        delegate.move(finish());
+    }
+
+    /**
+     * Moves current file to given directory. All chunks must be acknowledged.
+     */
+    public void move(String directory, boolean ensureDirectory) {
+        delegate.move(finish(), directory, ensureDirectory);
+    }
+
+    /**
+     * Stops reading of current file. File will be provided again.
+     */
+    public void reset() {
+        String token;
+        synchronized(this) {
+            token = lease;
+            cleanFile();
+        }
+        if(token != null) delegate.reset(token);
+    }
+
+    @Override
+    public void close() {
+        synchronized(this) {
+            cleanFile();
+        }
+    }
+
+    /**
+     * Decodes chunk to string.
+     */
+    public static String asString(ByteBuffer chunk, Charset charset) {
+        if(chunk == null) return null;
+        return charset.decode(chunk.duplicate()).toString();
+    }
+
+    /**
+     * Copies chunk to byte array.
+     */
+    public static byte[] asBytes(ByteBuffer chunk) {
+        if(chunk == null) return null;
+        ByteBuffer b = chunk.duplicate();
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return bytes;
+    }
+
+
+    private synchronized String finish() {
+        if(file == null) return null;
+        if(!lastProvided || !unacknowledged.isEmpty()) throw new IllegalStateException("not all chunks of " + file + " are acknowledged");
+        String token = lease;
+        cleanFile();
+        return token;
+    }
+
+    private boolean open() {
+        Message<File> message = delegate.receive();
+        if(message == null) return false;
+        File f = message.getPayload();
+        String token = (String)message.getHeaders().get(FileByFileMessageSource.LEASE);
+        try {
+            this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+        } catch(IOException e) {
+            delegate.reset(token);
+            throw new IllegalStateException("unable to open " + f, e);
+        }
+        this.file = f;
+        this.lease = token;
+        this.position = 0;
+        this.window = null;
+        this.windowStart = 0;
+        this.chunkIndex = 0;
+        this.lastProvided = false;
+        this.unacknowledged.clear();
+        return true;
+    }
+
+    private void cleanFile() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException e) {
+            }
+        }
+        this.channel = null;
+        this.file = null;
+        this.lease = null;
+        this.window = null;
+        this.unacknowledged.clear();
+        this.lastProvided = false;
+    }
+
+    /**
+     * Maps window starting at given position, so at least min bytes are
+     * available (if file is long enough).
+     */
+    private void map(long start, long min) throws IOException {
+        long length = Math.min(Math.max(mapWindow, min), size - start);
+        this.window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        this.windowStart = start;
+    }
+
+    private boolean mapped(long start, long end) {
+        return (window != null)
+            && (start >= windowStart)
+            && (end <= windowStart + window.capacity());
+    }
+
+    private ByteBuffer slice(long start, long end) {
+        ByteBuffer b = window.duplicate();
+        b.position((int)(start - windowStart));
+        b.limit((int)(end - windowStart));
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    private ByteBuffer nextFixedChunk() throws IOException {
+        long end = Math.min(position + chunkSize, size);
+        if(!mapped(position, end)) map(position, end - position);
+        ByteBuffer chunk = slice(position, end);
+        position = end;
+        return chunk;
+    }
+
+    private ByteBuffer nextRecord() throws IOException {
+        byte d = delimiter;
+        if(!mapped(position, Math.min(position + 1, size))) map(position, 0);
+        while(true) {
+            long windowEnd = windowStart + window.capacity();
+            for(long i = position; i < windowEnd; i++) {
+                if(window.get((int)(i - windowStart)) == d) {
+                    ByteBuffer record = slice(position, i);
+                    position = i + 1;
+                    return record;
+                }
+            }
+            if((windowEnd >= size) || (windowStart == position)) {
+                // end of file or record longer than whole window
+                ByteBuffer record = slice(position, windowEnd);
+                position = windowEnd;
+                return record;
+            }
+            map(position, 0);
+        }
+    }
+
+
+    private MessageBuilderFactory messageBuilderFactory = null;
+    protected synchronized MessageBuilderFactory getMessageBuilderFactory() {
+        if (this.messageBuilderFactory == null) { messageBuilderFactory = new DefaultMessageBuilderFactory(); }
+        return this.messageBuilderFactory;
+    }
+
+}
@@ -20,9 +20,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 import org.springframework.integration.file.DirectoryScanner;
 import org.springframework.integration.file.FileLocker;
@@ -33,12 +35,36 @@ import org.springframework.integration.file.filters.FileListFilter;
 import org.springframework.integration.file.filters.IgnoreHiddenFileListFilter;
 import org.springframework.util.Assert;
 
+/**
+ * Lists only first maxFileSizePerList files from directory (in directory 
+ * listing order) which are accepted by filter. 
+ * 
+ * With skipAccepted(true) scanner remembers returned files and skips them in 
+ * next scans before file stat and filter chain are evaluated. So poll cost 
+ * does not grow with number of already accepted files. Only 64 bit hashes 
+ * of paths are remembered (about 11 - 22 bytes per file). Remembered files 
+ * are forgotten when they disappear from directory or when they are 
+ * released (see release(File) and AcceptOnceFileReleaser). 
+ * 
+ * If more application instances read same directory, each of them can be 
+ * configured with FilePartitioner, so it sees only files which belongs to it.
+ * @author antons
+ */
 public class RealHeadDirectoryScanner implements DirectoryScanner {
 
 	private volatile FileListFilter<File> filter;
 	private volatile FileLocker locker;
     private int maxFileSizePerList = 100;
 
+    private volatile FilePartitioner partitioner = null;
+    private volatile boolean skipAccepted = false;
+    private final LongHashSet acceptedKeys = new LongHashSet();
+    private volatile boolean forgetMissing = false;
+    private volatile int lastSkipped = 0;
+    private volatile int lastEvaluated = 0;
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong evaluatedCount = new AtomicLong();
+
 
 	public RealHeadDirectoryScanner(int maxFileSizePerList) {
         this.maxFileSizePerList = maxFileSizePerList;
@@ -48,6 +74,48 @@ public class RealHeadDirectoryScanner implements DirectoryScanner {
 		this.filter = new CompositeFileListFilter<>(defaultFilters);
 	}
 
+    /**
+     * Remember returned files and skip them in next scans. (default false)
+     */
+    public RealHeadDirectoryScanner skipAccepted(boolean value) {
+        this.skipAccepted = value;
+        if(!value) acceptedKeys.clear();
+        return this;
+    }
+
+    /**
+     * Only files owned by partitioner member are listed. (default null - all files)
+     */
+    public RealHeadDirectoryScanner partitioner(FilePartitioner value) {
+        this.partitioner = value;
+        return this;
+    }
+
+    /**
+     * Forget returned file so it can be returned again.
+     */
+    public void release(File file) {
+        if(file != null) acceptedKeys.remove(LongHashSet.hash(file.getPath()));
+    }
+
+    /**
+     * Forget all returned files.
+     */
+    public void releaseAll() {
+        acceptedKeys.clear();
+    }
+
+    /** Number of directory entries skipped in last scan. */
+    public int getLastSkipped() { return lastSkipped; }
+    /** Number of directory entries evaluated (stat and filter) in last scan. */
+    public int getLastEvaluated() { return lastEvaluated; }
+    /** Number of directory entries skipped in all scans. */
+    public long getSkippedCount() { return skippedCount.get(); }
+    /** Number of directory entries evaluated in all scans. */
+    public long getEvaluatedCount() { return evaluatedCount.get(); }
+    /** Number of currently remembered accepted files. */
+    public int getAcceptedSize() { return acceptedKeys.size(); }
+
 	@Override
 	public void setFilter(FileListFilter<File> filter) {
         Assert.isTrue((filter == null) || filter.supportsSingleFileFiltering(), "filter must support dingke file filtering" + filter);
@@ -58,6 +126,10 @@ public class RealHeadDirectoryScanner implements DirectoryScanner {
 		return this.filter;
 	}
 
+	protected int getMaxFileSizePerList() {
+		return this.maxFileSizePerList;
+	}
+
 	@Override
 	public final void setLocker(FileLocker locker) {
 		this.locker = locker;
@@ -74,17 +146,139 @@ public class RealHeadDirectoryScanner implements DirectoryScanner {
 
 	@Override
 	public List<File> listFiles(File directory) {
+        List<File> result = new ArrayList<>();
+        Scan scan = startScan();
+        boolean complete = true;
         try (Stream<Path> stream = Files.list(directory.toPath())) {
-            return stream
-              .filter(Objects::nonNull)
-              .map(Path::toFile)
-              .filter(file -> file.isFile())
-              .filter(file -> (filter == null ? true : filter.accept(file)))
-              .limit(maxFileSizePerList)
-              .collect(Collectors.toList());
+            Iterator<Path> iter = stream.iterator();
+            while(iter.hasNext()) {
+                if(result.size() >= maxFileSizePerList) {
+                    complete = false;
+                    break;
+                }
+                Path path = iter.next();
+                if(path == null) continue;
+                if(scan.skip(path)) continue;
+                File file = path.toFile();
+                if(!file.isFile()) continue;
+                if((filter == null) || filter.accept(file)) result.add(file);
+            }
         } catch (IOException e) {
             throw new IllegalArgumentException("unable to list files from " + directory, e);
         }
+        scan.finish(result, complete);
+        return result;
 	}
 
+    /**
+     * Starts new scan. Scan instance should be used for one listing of 
+     * directory by one thread.
+     */
+    protected Scan startScan() {
+        FilePartitioner p = this.partitioner;
+        if(p != null) p.refresh();
+        return new Scan();
+    }
+
+    /**
+     * Additional condition for skipping directory entry before file stat 
+     * and filter is evaluated. By default skips files owned by other 
+     * partition members.
+     */
+    protected boolean skip(Path path) {
+        FilePartitioner p = this.partitioner;
+        return (p != null) && !p.owns(path.getFileName().toString());
+    }
+
+    /**
+     * One directory listing. Counts skipped and evaluated entries and 
+     * remembered files seen in directory. If some remembered files was 
+     * missing in previous complete listing, next scan collects seen files, 
+     * so missing ones can be forgotten. Scan can be shared by threads 
+     * listing parts of same directory tree.
+     */
+    protected class Scan {
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder evaluated = new LongAdder();
+        private final LongAdder seenCount = new LongAdder();
+        private final LongHashSet seen;
+        private volatile boolean counting = true;
+
+        protected Scan() {
+            this.seen = (skipAccepted && forgetMissing) ? new LongHashSet() : null;
+        }
+
+        /**
+         * Returns true if entry should not be evaluated.
+         */
+        public boolean skip(Path path) {
+            return skipAccepted(path) || skipExcluded(path);
+        }
+
+        /**
+         * Returns true if entry is file already returned by scanner.
+         */
+        public boolean skipAccepted(Path path) {
+            if(!skipAccepted) return false;
+            long key = LongHashSet.hash(path.toString());
+            if(!acceptedKeys.contains(key)) return false;
+            // each entry is listed by first pass
+            if(counting) {
+                skipped.increment();
+                seenCount.increment();
+                if(seen != null) seen.add(key);
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if file is excluded by scanner skip(Path) condition.
+         */
+        public boolean skipExcluded(Path path) {
+            if(RealHeadDirectoryScanner.this.skip(path)) {
+                if(counting) skipped.increment();
+                return true;
+            }
+            if(counting) evaluated.increment();
+            return false;
+        }
+
+        /**
+         * Starts next pass of the same directory listing. Entries are
+         * counted only once, so entries listed again are not counted.
+         */
+        public void nextPass() {
+            counting = false;
+        }
+
+        /**
+         * Finishes scan. Returned files are remembered. If whole directory was
+         * listed remembered files which are not in directory are forgotten.
+         * @param accepted files returned by scanner
+         * @param complete true if whole directory was listed
+         */
+        public void finish(Collection<File> accepted, boolean complete) {
+            if(skipAccepted) {
+                if(complete) {
+                    if(seen != null) {
+                        acceptedKeys.retainAll(seen);
+                        forgetMissing = false;
+                    } else if(seenCount.sum() < acceptedKeys.size()) {
+                        // some remembered files are not in directory
+                        forgetMissing = true;
+                    }
+                }
+                for(File file : accepted) {
+                    acceptedKeys.add(LongHashSet.hash(file.getPath()));
+                }
+            }
+            int s = skipped.intValue();
+            int e = evaluated.intValue();
+            lastSkipped = s;
+            lastEvaluated = e;
+            skippedCount.addAndGet(s);
+            evaluatedCount.addAndGet(e);
+        }
+    }
+
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.integration.file.filters.FileListFilter;
+
+/**
+ * Lists files from directory and all its sub directories (up to maxDepth).
+ * Sub directories are listed in parallel by ForkJoinPool.
+ *
+ * In ordered mode (default) it behaves like SortedHeadDirectoryScanner -
+ * each sub tree task keeps only head of its files and heads are merged. Filter
+ * is applied afterwards in comparator order. File names are not unique in
+ * directory tree, so files with same comparator result are ordered by path.
+ *
+ * In unordered mode it behaves like RealHeadDirectoryScanner - filter is
+ * applied directly by sub tree tasks (so it must be thread safe) and listing
+ * stops when maxFileSizePerList files are accepted.
+ *
+ * Symbolic links to directories are not followed.
+ * @author antons
+ */
+public class RecursiveDirectoryScanner extends SortedHeadDirectoryScanner {
+
+    private boolean ordered = true;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int parallelism = 0;
+    private ForkJoinPool pool = null;
+    private Comparator<File> comparator = withPath(super.getComparator());
+
+    public RecursiveDirectoryScanner(int maxFileSizePerList) {
+        super(maxFileSizePerList);
+    }
+    public static RecursiveDirectoryScanner of(int maxFileSizePerList) { return new RecursiveDirectoryScanner(maxFileSizePerList); }
+
+    /**
+     * Files are returned ordered by comparator. (default true)
+     */
+    public RecursiveDirectoryScanner ordered(boolean value) { this.ordered = value; return this; }
+    /**
+     * Max depth of listed sub directories. 0 means only given directory. (default unlimited)
+     */
+    public RecursiveDirectoryScanner maxDepth(int value) { this.maxDepth = Math.max(0, value); return this; }
+    /**
+     * Parallelism of own ForkJoinPool. (default 0 - common pool is used)
+     * Should be set before first listing, previously created pool is shut down.
+     */
+    public synchronized RecursiveDirectoryScanner parallelism(int value) {
+        if(value == this.parallelism) return this;
+        if(pool != null) pool.shutdown();
+        this.parallelism = value;
+        this.pool = null;
+        return this;
+    }
+
+    /**
+     * Comparator for files. Files with same comparator result are ordered by
+     * name and path.
+     */
+    @Override
+    public RecursiveDirectoryScanner comparator(Comparator<File> comparator) {
+        super.comparator(comparator);
+        this.comparator = withPath(super.getComparator());
+        return this;
+    }
+
+    @Override
+    protected Comparator<File> getComparator() {
+        return this.comparator;
+    }
+
+    @Override
+    public List<File> listFiles(File directory) {
+        if(ordered) return super.listFiles(directory);
+        Scan scan = startScan();
+        Unordered root = new Unordered(directory.toPath(), 0, scan
+            , new AtomicInteger(getMaxFileSizePerList())
+            , new ConcurrentLinkedQueue<>()
+            , new AtomicBoolean(true));
+        pool().invoke(root);
+        List<File> result = new ArrayList<>(root.result);
+        scan.finish(result, root.complete.get());
+        return result;
+    }
+
+    @Override
+    protected HeadCollector<File> collectHead(File directory, Scan scan, File after, int limit) {
+        return pool().invoke(new Ordered(directory.toPath(), 0, scan, after, limit));
+    }
+
+
+    private synchronized ForkJoinPool pool() {
+        if(parallelism <= 0) return ForkJoinPool.commonPool();
+        if(pool == null) pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    private static Comparator<File> withPath(Comparator<File> comparator) {
+        return comparator.thenComparing(File::getPath);
+    }
+
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isFile(Path path, BasicFileAttributes attributes) {
+        if(attributes.isRegularFile()) return true;
+        return attributes.isSymbolicLink() && path.toFile().isFile();
+    }
+
+    private static IllegalArgumentException listException(Path directory, IOException e) {
+        return new IllegalArgumentException("unable to list files from " + directory, e);
+    }
+
+    /**
+     * Collects head of files from one sub tree.
+     */
+    private class Ordered extends RecursiveTask<HeadCollector<File>> {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final int depth;
+        private final Scan scan;
+        private final File after;
+        private final int limit;
+
+        Ordered(Path directory, int depth, Scan scan, File after, int limit) {
+            this.directory = directory;
+            this.depth = depth;
+            this.scan = scan;
+            this.after = after;
+            this.limit = limit;
+        }
+
+        @Override
+        protected HeadCollector<File> compute() {
+            HeadCollector<File> head = HeadCollector.of(getComparator(), limit);
+            List<Ordered> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for(Path path : stream) {
+                    if(scan.skipAccepted(path)) continue;
+                    BasicFileAttributes attributes = attributes(path);
+                    if(attributes == null) continue;
+                    if(attributes.isDirectory()) {
+                        if(depth < maxDepth) {
+                            Ordered task = new Ordered(path, depth + 1, scan, after, limit);
+                            task.fork();
+                            subtasks.add(task);
+                        }
+                        continue;
+                    }
+                    if(!isFile(path, attributes)) continue;
+                    if(scan.skipExcluded(path)) continue;
+                    File file = path.toFile();
+                    if((after != null) && (getComparator().compare(file, after) <= 0)) continue;
+                    head.add(file);
+                }
+            } catch (IOException e) {
+                if(depth == 0) throw listException(directory, e);
+            }
+            for(Ordered task : subtasks) {
+                head.addAll(task.join());
+            }
+            return head;
+        }
+    }
+
+    /**
+     * Filters files from one sub tree until shared limit is reached.
+     */
+    private class Unordered extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final int depth;
+        private final Scan scan;
+        private final AtomicInteger free;
+        private final ConcurrentLinkedQueue<File> result;
+        private final AtomicBoolean complete;
+
+        Unordered(Path directory, int depth, Scan scan, AtomicInteger free, ConcurrentLinkedQueue<File> result, AtomicBoolean complete) {
+            this.directory = directory;
+            this.depth = depth;
+            this.scan = scan;
+            this.free = free;
+            this.result = result;
+            this.complete = complete;
+        }
+
+        @Override
+        protected void compute() {
+            FileListFilter<File> filter = getFilter();
+            List<Unordered> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for(Path path : stream) {
+                    if(free.get() <= 0) {
+                        complete.set(false);
+                        break;
+                    }
+                    if(scan.skipAccepted(path)) continue;
+                    BasicFileAttributes attributes = attributes(path);
+                    if(attributes == null) continue;
+                    if(attributes.isDirectory()) {
+                        if(depth < maxDepth) {
+                            Unordered task = new Unordered(path, depth + 1, scan, free, result, complete);
+                            task.fork();
+                            subtasks.add(task);
+                        }
+                        continue;
+                    }
+                    if(!isFile(path, attributes)) continue;
+                    if(scan.skipExcluded(path)) continue;
+                    // reserve place in result before filter is called, so
+                    // stateful filter never accepts file which is not returned
+                    if(free.getAndDecrement() <= 0) {
+                        free.incrementAndGet();
+                        complete.set(false);
+                        break;
+                    }
+                    File file = path.toFile();
+                    if((filter == null) || filter.accept(file)) result.add(file);
+                    else free.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if(depth == 0) throw listException(directory, e);
+            }
+            for(Unordered task : subtasks) {
+                task.join();
+            }
+        }
+    }
+
+}
@@ -16,18 +16,22 @@
 package sk.antons.siutils.file;
 
 import java.io.File;
-import java.util.Arrays;
 import java.util.Comparator;
 import org.springframework.integration.file.DefaultDirectoryScanner;
 
 /**
  * Derives functionality from DefaultDirectoryScanner, just sort files by given 
  * comparator. Default comparator is compare by names.
+ * 
+ * If comparator is AttributeComparator, file attributes are read only once 
+ * per file. Large listings (see parallelThreshold) are sorted by 
+ * Arrays.parallelSort.
  * @author antons
  */
 public class SortedDirectoryScanner extends DefaultDirectoryScanner {
 
     private Comparator<File> comparator;
+    private int parallelThreshold = 10000;
 
 	public SortedDirectoryScanner() {
         this.comparator = NameComparator.instance();
@@ -37,13 +41,21 @@ public class SortedDirectoryScanner extends DefaultDirectoryScanner {
         return this;
     }
 	
+	/**
+	 * Number of files from which parallel sort is used. (default 10000)
+	 */
+	public SortedDirectoryScanner parallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+	
     public static SortedDirectoryScanner instance() { return new SortedDirectoryScanner(); }
 
     @Override
     protected File[] listEligibleFiles(File directory) {
         File[] files = super.listEligibleFiles(directory);
         if(files != null) {
-            if(comparator != null) Arrays.sort(files, comparator);
+            if(comparator != null) AttributeComparator.sort(files, comparator, parallelThreshold);
         }
         return files;
     }
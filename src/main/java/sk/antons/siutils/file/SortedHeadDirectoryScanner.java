@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.springframework.integration.file.filters.FileListFilter;
+
+/**
+ * Returns first maxFileSizePerList files from directory ordered by given
+ * comparator (by name by default). Directory is streamed and only
+ * maxFileSizePerList smallest files are kept in memory, so head of large
+ * directory is selected in O(n log k) time and O(k) memory.
+ *
+ * Filter is applied to files in comparator order only until head is full,
+ * so stateful filters (like AcceptOnceFileListFilter) do not mark files
+ * which are not returned. If filter rejects some head files next part of
+ * directory is streamed with twice larger heap (so number of passes grows
+ * only logarithmically). Number of candidates needed by last listing is
+ * remembered, so next listing collects enough candidates in one pass.
+ *
+ * If files stays in directory after processing use skipAccepted(true), so
+ * they are skipped before filter.
+ * @author antons
+ */
+public class SortedHeadDirectoryScanner extends RealHeadDirectoryScanner {
+
+    private static final int MAX_COLLECT = Integer.MAX_VALUE / 4;
+
+    private Comparator<File> comparator = FileByFileMessageSource.FileNameComparator.instance();
+    private volatile int collectSize = 0;
+
+    public SortedHeadDirectoryScanner(int maxFileSizePerList) {
+        super(maxFileSizePerList);
+    }
+    public static SortedHeadDirectoryScanner of(int maxFileSizePerList) { return new SortedHeadDirectoryScanner(maxFileSizePerList); }
+
+    /**
+     * Comparator for files. Files with same comparator result are ordered by name.
+     */
+    public SortedHeadDirectoryScanner comparator(Comparator<File> comparator) {
+        this.comparator = comparator == null
+            ? FileByFileMessageSource.FileNameComparator.instance()
+            : comparator.thenComparing(FileByFileMessageSource.FileNameComparator.instance());
+        return this;
+    }
+
+    protected Comparator<File> getComparator() {
+        return this.comparator;
+    }
+
+    @Override
+    public List<File> listFiles(File directory) {
+        int limit = getMaxFileSizePerList();
+        FileListFilter<File> filter = getFilter();
+        List<File> result = new ArrayList<>();
+        Scan scan = startScan();
+        File after = null;
+        int size = Math.max(limit, collectSize);
+        int examined = 0;
+        while(result.size() < limit) {
+            HeadCollector<File> head = collectHead(directory, scan, after, size);
+            List<File> candidates = head.toList();
+            for(File file : candidates) {
+                if(result.size() >= limit) break;
+                examined++;
+                if((filter == null) || filter.accept(file)) result.add(file);
+            }
+            if(head.count() <= head.size()) break;
+            if(result.size() >= limit) break;
+            after = candidates.get(candidates.size() - 1);
+            scan.nextPass();
+            size = Math.min(MAX_COLLECT, size * 2);
+        }
+        // rejected files are expected again (and some more)
+        long rejected = examined - result.size();
+        collectSize = (int)Math.min(MAX_COLLECT, limit + 2 * rejected);
+        scan.finish(result, true);
+        return result;
+    }
+
+    /**
+     * Collects limit smallest files from directory, which are greater than
+     * given file.
+     * @param directory scanned directory
+     * @param scan current scan
+     * @param after only files greater than this one are collected (null for all files)
+     * @param limit max number of collected files
+     */
+    protected HeadCollector<File> collectHead(File directory, Scan scan, File after, int limit) {
+        HeadCollector<File> head = HeadCollector.of(getComparator(), limit);
+        try (Stream<Path> stream = Files.list(directory.toPath())) {
+            Iterator<Path> iter = stream.iterator();
+            while(iter.hasNext()) {
+                Path path = iter.next();
+                if(path == null) continue;
+                if(scan.skip(path)) continue;
+                File file = path.toFile();
+                if((after != null) && (getComparator().compare(file, after) <= 0)) continue;
+                if(!file.isFile()) continue;
+                head.add(file);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to list files from " + directory, e);
+        }
+        return head;
+    }
+
+}
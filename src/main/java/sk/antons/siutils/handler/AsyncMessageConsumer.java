@@ -0,0 +1,216 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.handler;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+
+/**
+ * Message handler which process message data asynchronously. Original
+ * message is returned to flow immediately and consumer is called by
+ * executor.
+ *
+ * Only maxInFlight messages can be processed (or waiting for processing)
+ * at once. If limit is reached flow thread waits (so poller is slowed down).
+ *
+ * Messages with the same key (like correlation id) can be processed serially
+ * in order as they came. Messages with different keys are processed in
+ * parallel.
+ * <pre>
+ *   AsyncMessageConsumer consumer = AsyncMessageConsumer.consumeBy(m -> http.post(m.getPayload()))
+ *       .maxInFlight(32)
+ *       .orderedByCorrelationId();
+ *   ...
+ *   .handle(consumer)
+ *   ...
+ *   consumer.drain(Duration.ofSeconds(30));
+ * </pre>
+ * Errors from consumer are ignored or passed to errorHandler.
+ * @author antons
+ */
+public class AsyncMessageConsumer extends MessageConsumer implements AutoCloseable {
+    final Consumer<Message<?>> consumer;
+    private Executor executor;
+    private volatile ExecutorService ownExecutor;
+    private int maxInFlight = 64;
+    private Function<Message<?>, Object> orderKey;
+    private BiConsumer<Message<?>, Throwable> errorHandler;
+
+    private Semaphore permits = new Semaphore(maxInFlight);
+    private final Map<Object, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public AsyncMessageConsumer(Consumer<Message<?>> consumer) {
+        if(consumer == null) throw new NullPointerException("unable to consume - no consumer");
+        this.consumer = consumer;
+    }
+
+    public static AsyncMessageConsumer consumeBy(final Consumer<Message<?>> consumer) {
+        return new AsyncMessageConsumer(consumer);
+    }
+
+    /**
+     * Executor for consumer calls. (default cached pool of daemon threads,
+     * on java 21+ you can use Executors.newVirtualThreadPerTaskExecutor())
+     */
+    public AsyncMessageConsumer executor(Executor executor) { this.executor = executor; return this; }
+    /**
+     * Max number of messages processed or waiting for processing. (default 64)
+     */
+    public AsyncMessageConsumer maxInFlight(int value) {
+        if(permits.availablePermits() != maxInFlight) throw new IllegalStateException("unable to change max in flight - messages are processed");
+        this.maxInFlight = Math.max(1, value);
+        this.permits = new Semaphore(maxInFlight);
+        return this;
+    }
+    /**
+     * Messages with the same key are processed serially. Null key means no
+     * ordering. (default null function - no ordering)
+     */
+    public AsyncMessageConsumer orderBy(Function<Message<?>, Object> key) { this.orderKey = key; return this; }
+    /**
+     * Messages with the same correlation id are processed serially.
+     */
+    public AsyncMessageConsumer orderedByCorrelationId() {
+        return orderBy(m -> m.getHeaders().get(IntegrationMessageHeaderAccessor.CORRELATION_ID));
+    }
+    /**
+     * Handler for throwables from consumer. (default null - ignored)
+     */
+    public AsyncMessageConsumer errorHandler(BiConsumer<Message<?>, Throwable> errorHandler) { this.errorHandler = errorHandler; return this; }
+
+    /**
+     * Number of messages processed or waiting for processing.
+     */
+    public int getInFlight() { return maxInFlight - permits.availablePermits(); }
+
+    @Override
+    protected void accept(Message<?> message) throws MessagingException {
+        // key is computed before slot is taken, so failing key function
+        // does not leak slot
+        Object key = orderKey == null ? null : orderKey.apply(message);
+        try {
+            permits.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException(message, "interrupted while waiting for free slot", e);
+        }
+        if(key == null) {
+            execute(() -> process(message));
+            return;
+        }
+        // message is started when previous message with the same key is finished
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = tails.put(key, done);
+        Runnable task = () -> {
+            try {
+                process(message);
+            } finally {
+                tails.remove(key, done);
+                done.complete(null);
+            }
+        };
+        if(previous == null) execute(task);
+        else previous.whenComplete((v, e) -> execute(task));
+    }
+
+    /**
+     * Waits until all messages are processed.
+     * @param timeout max wait time (null for no limit)
+     * @return true if all messages are processed
+     */
+    public boolean drain(Duration timeout) {
+        Semaphore s = permits;
+        int all = maxInFlight;
+        try {
+            if(timeout == null) s.acquire(all);
+            else if(!s.tryAcquire(all, timeout.toNanos(), TimeUnit.NANOSECONDS)) return false;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        s.release(all);
+        return true;
+    }
+
+    /**
+     * Waits (max 30 seconds) until all messages are processed and stops
+     * default executor.
+     */
+    @Override
+    public void close() {
+        drain(Duration.ofSeconds(30));
+        synchronized(this) {
+            if(ownExecutor != null) ownExecutor.shutdown();
+            ownExecutor = null;
+        }
+    }
+
+
+    private void process(Message<?> message) {
+        try {
+            consumer.accept(message);
+        } catch(Throwable e) {
+            if(errorHandler != null) {
+                try {
+                    errorHandler.accept(message, e);
+                } catch(Throwable ee) {
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor().execute(task);
+        } catch(RejectedExecutionException e) {
+            // executor is stopped - process in caller thread
+            task.run();
+        }
+    }
+
+    private Executor executor() {
+        if(executor != null) return executor;
+        ExecutorService ex = ownExecutor;
+        if(ex != null) return ex;
+        synchronized(this) {
+            if(ownExecutor == null) {
+                ownExecutor = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "AsyncMessageConsumer");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return ownExecutor;
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.handler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+
+/**
+ * Message handler which collects messages and process them in bulk. Original
+ * message is returned to flow immediately. Collected messages are passed to
+ * consumer when maxMessages or maxBytes (computed by sizeExtractor) is
+ * reached (in flow thread) or when oldest collected message waits maxTime
+ * (by executor - own daemon thread of each consumer by default, shared timer
+ * thread only passes flush to executor).
+ * <pre>
+ *   BulkMessageConsumer consumer = BulkMessageConsumer.consumeBy(list -> solr.add(docs(list)))
+ *       .maxMessages(500)
+ *       .maxTime(Duration.ofSeconds(2));
+ *   ...
+ *   .handle(consumer)
+ *   ...
+ *   consumer.close();
+ * </pre>
+ * Bulks are passed to consumer one by one in order as messages came (so flow
+ * thread which reaches maxMessages waits while previous bulk is processed).
+ * Errors from consumer are ignored or passed to errorHandler.
+ * @author antons
+ */
+public class BulkMessageConsumer extends MessageConsumer implements AutoCloseable {
+    final Consumer<List<Message<?>>> consumer;
+    private int maxMessages = 100;
+    private long maxBytes = 0;
+    private ToLongFunction<Message<?>> sizeExtractor;
+    private Duration maxTime = Duration.ofSeconds(1);
+    private BiConsumer<List<Message<?>>, Throwable> errorHandler;
+    private Executor executor;
+    private volatile ThreadPoolExecutor ownExecutor;
+
+    private final Object bufferLock = new Object();
+    private final Object flushLock = new Object();
+    private List<Message<?>> buffer = new ArrayList<>();
+    private long bytes = 0;
+    private long generation = 0;
+
+    public BulkMessageConsumer(Consumer<List<Message<?>>> consumer) {
+        if(consumer == null) throw new NullPointerException("unable to consume - no consumer");
+        this.consumer = consumer;
+    }
+
+    public static BulkMessageConsumer consumeBy(final Consumer<List<Message<?>>> consumer) {
+        return new BulkMessageConsumer(consumer);
+    }
+
+    /**
+     * Max number of messages in bulk. (default 100)
+     */
+    public BulkMessageConsumer maxMessages(int value) { this.maxMessages = Math.max(1, value); return this; }
+    /**
+     * Max size of messages in bulk. Size of message is computed by
+     * sizeExtractor. (default 0 - no limit)
+     */
+    public BulkMessageConsumer maxBytes(long value, ToLongFunction<Message<?>> sizeExtractor) { this.maxBytes = value; this.sizeExtractor = sizeExtractor; return this; }
+    /**
+     * Max time message waits in bulk. (default 1 second, null - no limit)
+     */
+    public BulkMessageConsumer maxTime(Duration value) { this.maxTime = value; return this; }
+    /**
+     * Handler for throwables from consumer. (default null - ignored)
+     */
+    public BulkMessageConsumer errorHandler(BiConsumer<List<Message<?>>, Throwable> errorHandler) { this.errorHandler = errorHandler; return this; }
+    /**
+     * Executor for bulks flushed by maxTime. (default own daemon thread)
+     */
+    public BulkMessageConsumer executor(Executor executor) { this.executor = executor; return this; }
+
+    /**
+     * Number of collected messages.
+     */
+    public int getPending() {
+        synchronized(bufferLock) {
+            return buffer.size();
+        }
+    }
+
+    @Override
+    protected void accept(Message<?> message) throws MessagingException {
+        boolean full;
+        long scheduleGeneration = -1;
+        synchronized(bufferLock) {
+            if(buffer.isEmpty() && (maxTime != null)) scheduleGeneration = generation;
+            buffer.add(message);
+            if((sizeExtractor != null) && (maxBytes > 0)) bytes += sizeExtractor.applyAsLong(message);
+            full = (buffer.size() >= maxMessages) || ((maxBytes > 0) && (bytes >= maxBytes));
+        }
+        if(full) {
+            flush();
+        } else if(scheduleGeneration >= 0) {
+            final long g = scheduleGeneration;
+            scheduler().schedule(() -> flushLater(g), maxTime.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Passes all collected messages to consumer.
+     */
+    public void flush() {
+        flush(-1);
+    }
+
+    /**
+     * Passes rest of collected messages to consumer and stops default
+     * executor.
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized(this) {
+            if(ownExecutor != null) ownExecutor.shutdown();
+            ownExecutor = null;
+        }
+    }
+
+    /**
+     * Timer only passes flush to executor, so slow consumer does not
+     * delay timers of other consumers.
+     */
+    private void flushLater(long expected) {
+        try {
+            executor().execute(() -> flush(expected));
+        } catch(RejectedExecutionException e) {
+            // executor is stopped - flush in timer thread
+            flush(expected);
+        }
+    }
+
+
+    /**
+     * Flushes collected messages.
+     * @param expected generation of collected messages or -1 for any
+     */
+    private void flush(long expected) {
+        synchronized(flushLock) {
+            List<Message<?>> bulk;
+            synchronized(bufferLock) {
+                // messages were already flushed by size
+                if((expected >= 0) && (expected != generation)) return;
+                if(buffer.isEmpty()) return;
+                bulk = buffer;
+                buffer = new ArrayList<>();
+                bytes = 0;
+                generation++;
+            }
+            try {
+                consumer.accept(bulk);
+            } catch(Throwable e) {
+                if(errorHandler != null) {
+                    try {
+                        errorHandler.accept(bulk, e);
+                    } catch(Throwable ee) {
+                    }
+                }
+            }
+        }
+    }
+
+    private Executor executor() {
+        if(executor != null) return executor;
+        ThreadPoolExecutor ex = ownExecutor;
+        if(ex != null) return ex;
+        synchronized(this) {
+            if(ownExecutor == null) {
+                ex = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS
+                    , new LinkedBlockingQueue<>()
+                    , r -> {
+                        Thread t = new Thread(r, "BulkMessageConsumer-flush");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                ex.allowCoreThreadTimeOut(true);
+                ownExecutor = ex;
+            }
+            return ownExecutor;
+        }
+    }
+
+    private static ScheduledExecutorService scheduler = null;
+    private static synchronized ScheduledExecutorService scheduler() {
+        if(scheduler == null) {
+            ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "BulkMessageConsumer");
+                t.setDaemon(true);
+                return t;
+            });
+            ex.setRemoveOnCancelPolicy(true);
+            scheduler = ex;
+        }
+        return scheduler;
+    }
+
+}
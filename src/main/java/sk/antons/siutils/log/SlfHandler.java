@@ -17,36 +17,314 @@ package sk.antons.siutils.log;
 
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessagingException;
+import java.time.Duration;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import org.slf4j.Logger;
+import org.slf4j.event.Level;
 import org.springframework.messaging.MessageHeaders;
 import sk.antons.siutils.handler.MessageConsumer;
 
 /**
- * API for logging in flows. It uses given slf4j logger instance so it is 
+ * API for logging in flows. It uses given slf4j logger instance so it is
  * possible to configure logging more effective way.
  * <pre>
  * use form:
  *   .handler(SlfHandler.of(lg -> lg.debug(log, "message {}", lg.message())))
  * </pre>
+ * If logger and level are declared up front nothing is allocated or evaluated
+ * when level is disabled. Arguments are evaluated only when message is logged.
+ * <pre>
+ *   .handler(SlfHandler.debug(log, "file {} size {}", lg -> lg.header(FileHeaders.FILENAME), lg -> lg.payload()))
+ *   .handler(SlfHandler.of(log, Level.DEBUG, lg -> lg.debug(log, "message {}", lg.message())))
+ * </pre>
+ * On hot flows only sample of messages can be logged (every n-th message or
+ * messages with given probability). Or messages can be only counted by key
+ * and summary line is logged once per interval by background thread. Summary
+ * line is logged with format with two arguments - number of messages and
+ * counts by key.
+ * <pre>
+ *   .handler(SlfHandler.debug(log, "file {}", lg -> lg.payload()).sampleEvery(100))
+ *   .handler(SlfHandler.info(log, "processed {} messages {}").aggregate(m -> m.getHeaders().get("type"), Duration.ofMinutes(1)))
+ * </pre>
  * @author antons
  */
-public class SlfHandler extends MessageConsumer {
+public class SlfHandler extends MessageConsumer implements AutoCloseable {
 
     @Override
     protected void accept(Message<?> message) throws MessagingException {
+        if((logger != null) && !enabled(logger, level)) return;
+        if(aggregateKey != null) {
+            count(aggregateKey.apply(message));
+            return;
+        }
+        if(!sampled()) return;
         if(lgfunction != null) lgfunction.apply(Lg.of(message));
+        else if(format != null) log(Lg.of(message));
     }
-    
+
 
     Function<Lg, Lg> lgfunction;
+    Logger logger;
+    Level level;
+    String format;
+    Function<Lg, Object>[] args;
+
+    long sampleEvery = 1;
+    double sampleRate = 1;
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    Function<Message<?>, Object> aggregateKey;
+    private final Map<Object, Counter> counts = new ConcurrentHashMap<>();
+    private final Map<Counter, Object> retired = new IdentityHashMap<>();
+    private ScheduledFuture<?> flusher;
 
     public SlfHandler(Function<Lg, Lg> lgfunction) {
         this.lgfunction = lgfunction;
     }
 
+    /**
+     * Handler which evaluates lgfunction only if given level is enabled
+     * for logger.
+     */
+    public SlfHandler(Logger logger, Level level, Function<Lg, Lg> lgfunction) {
+        if(logger == null) throw new NullPointerException("unable to log - no logger");
+        this.logger = logger;
+        this.level = level == null ? Level.DEBUG : level;
+        this.lgfunction = lgfunction;
+    }
+
+    /**
+     * Handler which logs format with arguments computed from message only if
+     * given level is enabled for logger.
+     */
+    @SafeVarargs
+    public SlfHandler(Logger logger, Level level, String format, Function<Lg, Object>... args) {
+        if(logger == null) throw new NullPointerException("unable to log - no logger");
+        this.logger = logger;
+        this.level = level == null ? Level.DEBUG : level;
+        this.format = format;
+        this.args = functions(args == null ? 0 : args.length);
+        for(int i = 0; i < this.args.length; i++) {
+            this.args[i] = args[i];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Lg, Object>[] functions(int size) { return (Function<Lg, Object>[])new Function<?, ?>[size]; }
+
     public static SlfHandler of(Function<Lg, Lg> lgfunction) { return new SlfHandler(lgfunction); }
-    
+    public static SlfHandler of(Logger logger, Level level, Function<Lg, Lg> lgfunction) { return new SlfHandler(logger, level, lgfunction); }
+    @SafeVarargs
+    public static SlfHandler of(Logger logger, Level level, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, level, format, args); }
+    @SafeVarargs
+    public static SlfHandler trace(Logger logger, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, Level.TRACE, format, args); }
+    @SafeVarargs
+    public static SlfHandler debug(Logger logger, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, Level.DEBUG, format, args); }
+    @SafeVarargs
+    public static SlfHandler info(Logger logger, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, Level.INFO, format, args); }
+    @SafeVarargs
+    public static SlfHandler warn(Logger logger, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, Level.WARN, format, args); }
+    @SafeVarargs
+    public static SlfHandler error(Logger logger, String format, Function<Lg, Object>... args) { return new SlfHandler(logger, Level.ERROR, format, args); }
+
+    /**
+     * Only every n-th message is logged. (default 1 - all messages)
+     */
+    public SlfHandler sampleEvery(long n) { this.sampleEvery = Math.max(1, n); return this; }
+    /**
+     * Message is logged with given probability (0 - 1). (default 1 - all messages)
+     */
+    public SlfHandler sampleRate(double probability) { this.sampleRate = Math.max(0, Math.min(1, probability)); return this; }
+    /**
+     * Messages are not logged but counted by key computed from message.
+     * Summary line is logged every interval by background thread. Format
+     * gets number of messages and map of counts by key as arguments.
+     * Key function is called for each message, so it should be cheap.
+     */
+    public synchronized SlfHandler aggregate(Function<Message<?>, Object> key, Duration interval) {
+        if((logger == null) || (format == null)) throw new IllegalStateException("aggregation needs logger, level and format");
+        if(key == null) throw new NullPointerException("unable to aggregate - no key");
+        if((interval == null) || interval.isZero() || interval.isNegative()) throw new IllegalArgumentException("wrong aggregation interval " + interval);
+        if(flusher != null) flusher.cancel(false);
+        this.aggregateKey = key;
+        long nanos = interval.toNanos();
+        this.flusher = scheduler().scheduleAtFixedRate(this::flushQuietly, nanos, nanos, TimeUnit.NANOSECONDS);
+        return this;
+    }
+
+    /**
+     * Logs summary line of aggregated messages (if there are some) and
+     * resets counts.
+     */
+    public synchronized void flush() {
+        long total = 0;
+        Map<Object, Long> summary = new LinkedHashMap<>();
+        // removed counters can be still incremented by threads which got
+        // them before removal, so they are read in next flushes too
+        Iterator<Map.Entry<Counter, Object>> iter = retired.entrySet().iterator();
+        while(iter.hasNext()) {
+            Map.Entry<Counter, Object> entry = iter.next();
+            Counter counter = entry.getKey();
+            long c = counter.sumThenReset();
+            if(c == 0) {
+                if(++counter.idle >= 2 * MAX_IDLE_INTERVALS) iter.remove();
+            } else {
+                summary.merge(entry.getValue(), c, Long::sum);
+                total += c;
+            }
+        }
+        for(Map.Entry<Object, Counter> entry : counts.entrySet()) {
+            Counter counter = entry.getValue();
+            long c = counter.sumThenReset();
+            if(c == 0) {
+                // key without messages for more intervals
+                counter.idle++;
+                if((counter.idle >= MAX_IDLE_INTERVALS) && counts.remove(entry.getKey(), counter)) retired.put(counter, entry.getKey());
+            } else {
+                counter.idle = 0;
+                summary.merge(entry.getKey(), c, Long::sum);
+                total += c;
+            }
+        }
+        if(total > 0) log(logger, level, format, total, summary);
+    }
+
+    /**
+     * Stops background flusher and logs rest of aggregated messages.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            if(flusher != null) flusher.cancel(false);
+            flusher = null;
+        }
+        if(aggregateKey != null) flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch(Throwable e) {
+        }
+    }
+
+    private static final Object NULL_KEY = "null";
+    // counter of key without messages for such number of flushes is removed
+    // (and read by next flushes, so count is lost only if thread stops for
+    // more intervals between counter lookup and increment)
+    private static final int MAX_IDLE_INTERVALS = 3;
+
+    private void count(Object key) {
+        if(key == null) key = NULL_KEY;
+        Counter counter = counts.get(key);
+        if(counter == null) counter = counts.computeIfAbsent(key, k -> new Counter());
+        counter.increment();
+    }
+
+    /**
+     * Striped counter of one key with number of flushes without messages.
+     */
+    private static class Counter extends LongAdder {
+        private static final long serialVersionUID = 1L;
+        private int idle = 0;
+    }
+
+    private boolean sampled() {
+        if((sampleEvery > 1) && (sampleCounter.getAndIncrement() % sampleEvery != 0)) return false;
+        if((sampleRate < 1) && (ThreadLocalRandom.current().nextDouble() >= sampleRate)) return false;
+        return true;
+    }
+
+    private static ScheduledExecutorService scheduler = null;
+    private static synchronized ScheduledExecutorService scheduler() {
+        if(scheduler == null) {
+            ScheduledThreadPoolExecutor ex = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "SlfHandler-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            ex.setRemoveOnCancelPolicy(true);
+            scheduler = ex;
+        }
+        return scheduler;
+    }
+
+    private void log(Lg lg) {
+        // one and two arguments are logged without array
+        if(args.length == 0) log(logger, level, format);
+        else if(args.length == 1) log(logger, level, format, args[0].apply(lg));
+        else if(args.length == 2) log(logger, level, format, args[0].apply(lg), args[1].apply(lg));
+        else {
+            Object[] params = new Object[args.length];
+            for(int i = 0; i < args.length; i++) {
+                params[i] = args[i].apply(lg);
+            }
+            log(logger, level, format, params);
+        }
+    }
+
+    static boolean enabled(Logger log, Level level) {
+        switch(level) {
+            case TRACE: return log.isTraceEnabled();
+            case DEBUG: return log.isDebugEnabled();
+            case INFO: return log.isInfoEnabled();
+            case WARN: return log.isWarnEnabled();
+            default: return log.isErrorEnabled();
+        }
+    }
+
+    static void log(Logger log, Level level, String format) {
+        switch(level) {
+            case TRACE: log.trace(format); break;
+            case DEBUG: log.debug(format); break;
+            case INFO: log.info(format); break;
+            case WARN: log.warn(format); break;
+            default: log.error(format);
+        }
+    }
+
+    static void log(Logger log, Level level, String format, Object arg) {
+        switch(level) {
+            case TRACE: log.trace(format, arg); break;
+            case DEBUG: log.debug(format, arg); break;
+            case INFO: log.info(format, arg); break;
+            case WARN: log.warn(format, arg); break;
+            default: log.error(format, arg);
+        }
+    }
+
+    static void log(Logger log, Level level, String format, Object arg1, Object arg2) {
+        switch(level) {
+            case TRACE: log.trace(format, arg1, arg2); break;
+            case DEBUG: log.debug(format, arg1, arg2); break;
+            case INFO: log.info(format, arg1, arg2); break;
+            case WARN: log.warn(format, arg1, arg2); break;
+            default: log.error(format, arg1, arg2);
+        }
+    }
+
+    static void log(Logger log, Level level, String format, Object[] args) {
+        switch(level) {
+            case TRACE: log.trace(format, args); break;
+            case DEBUG: log.debug(format, args); break;
+            case INFO: log.info(format, args); break;
+            case WARN: log.warn(format, args); break;
+            default: log.error(format, args);
+        }
+    }
+
     public static class Lg {
         private Message<?> message;
         public Lg(Message<?> message) {
@@ -58,7 +336,7 @@ public class SlfHandler extends MessageConsumer {
         public Object payload() { return message.getPayload(); }
         public MessageHeaders header() { return message.getHeaders(); }
         public Object header(Object key) { return message.getHeaders().get(key); }
-        
+
         public Lg trace(Logger log, String message, Object... params) { log.trace(message, params); return this; }
         public Lg debug(Logger log, String message, Object... params) { log.debug(message, params); return this; }
         public Lg info(Logger log, String message, Object... params) { log.info(message, params); return this; }
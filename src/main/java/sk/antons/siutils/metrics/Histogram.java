@@ -0,0 +1,155 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non negative long values (like latency in
+ * nanoseconds). Values are counted in log-linear buckets - each power of two
+ * is divided to 32 sub buckets, so relative error of percentiles is about
+ * 3%. Recording of value is one atomic increment (no allocation, no lock).
+ * @author antons
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public static Histogram of() { return new Histogram(); }
+
+    /**
+     * Records value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if(value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Copy of current values. Concurrently recorded values can be
+     * partially included.
+     */
+    public Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        return new Snapshot(c, total, sum.sum(), max.get());
+    }
+
+    static int index(long value) {
+        if(value < SUB_COUNT) return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int)((value >>> shift) - SUB_COUNT);
+    }
+
+    static long lowerBound(int index) {
+        int group = index >>> SUB_BITS;
+        if(group == 0) return index;
+        long sub = index & (SUB_COUNT - 1);
+        return (SUB_COUNT + sub) << (group - 1);
+    }
+
+    static long upperBound(int index) {
+        int group = index >>> SUB_BITS;
+        if(group == 0) return index;
+        return lowerBound(index) + (1L << (group - 1)) - 1;
+    }
+
+
+    /**
+     * Immutable copy of histogram.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+        public long getSum() { return sum; }
+        public long getMax() { return max; }
+        public double getMean() { return count == 0 ? 0 : (double)sum / count; }
+
+        /**
+         * Returns value at given percentile (0 - 100). Value is upper bound
+         * of bucket (but not more than max).
+         */
+        public long getPercentile(double percentile) {
+            if(count == 0) return 0;
+            long rank = (long)Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count);
+            if(rank < 1) rank = 1;
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= rank) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+
+        /**
+         * Number of recorded values between given bounds (inclusive, with
+         * bucket precision).
+         */
+        public long getCount(long from, long to) {
+            long c = 0;
+            for(int i = index(Math.max(0, from)); i < counts.length; i++) {
+                if(lowerBound(i) > to) break;
+                c += counts[i];
+            }
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{count: " + count
+                + ", mean: " + (long)getMean()
+                + ", p50: " + getPercentile(50)
+                + ", p99: " + getPercentile(99)
+                + ", max: " + max + "}";
+        }
+    }
+}
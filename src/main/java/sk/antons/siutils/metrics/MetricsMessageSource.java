@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.metrics;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.springframework.integration.IntegrationPatternType;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.messaging.Message;
+
+/**
+ * Measures delegated message source. It records latency of receive() calls,
+ * number of messages, null messages and errors and sizes of batches
+ * (continuous sequence of non null messages).
+ *
+ * Recording uses only striped counters and atomic arrays so it adds minimal
+ * overhead. Values can be read by snapshot() and published to any metrics
+ * system.
+ * <pre>
+ *   MetricsRegistry registry = MetricsRegistry.of();
+ *   MessageSource source = MetricsMessageSource.of(OnOffMessageSource.of(fs).condition(...))
+ *       .name("inbox")
+ *       .registry(registry);
+ *   ...
+ *   registry.snapshot().forEach((name, s) -> log.info("{} {}", name, s));
+ * </pre>
+ * @author antons
+ */
+public class MetricsMessageSource<T> implements MessageSource<T> {
+
+    private MessageSource<T> delegate;
+    private String name;
+
+    private final Histogram latency = Histogram.of();
+    private final Histogram batchSize = Histogram.of();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder nulls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong batch = new AtomicLong();
+
+    public MetricsMessageSource(MessageSource<T> delegate) {
+        this.delegate = delegate;
+        this.name = delegate == null ? "null" : delegate.getClass().getSimpleName();
+    }
+    /**
+     * Name of source in registry. (default simple class name of delegate)
+     */
+    public MetricsMessageSource<T> name(String name) { this.name = name; return this; }
+    /**
+     * Registers source to given registry.
+     */
+    public MetricsMessageSource<T> registry(MetricsRegistry registry) { registry.register(name, this); return this; }
+
+    public static <P> MetricsMessageSource<P> of(MessageSource<P> delegate) { return new MetricsMessageSource(delegate); }
+
+    public String getName() { return name; }
+
+    @Override
+    public Message<T> receive() {
+        long start = System.nanoTime();
+        Message<T> message = null;
+        try {
+            message = delegate.receive();
+        } catch(RuntimeException | Error e) {
+            errors.increment();
+            throw e;
+        } finally {
+            latency.record(System.nanoTime() - start);
+        }
+        if(message == null) {
+            nulls.increment();
+            long size = batch.getAndSet(0);
+            if(size > 0) batchSize.record(size);
+        } else {
+            messages.increment();
+            batch.incrementAndGet();
+        }
+        return message;
+    }
+
+    /**
+     * Current values.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(name, messages.sum(), nulls.sum(), errors.sum(), latency.snapshot(), batchSize.snapshot());
+    }
+
+    /**
+     * Removes all recorded values.
+     */
+    public void reset() {
+        messages.reset();
+        nulls.reset();
+        errors.reset();
+        batch.set(0);
+        latency.reset();
+        batchSize.reset();
+    }
+
+    @Override
+    public IntegrationPatternType getIntegrationPatternType() {
+        return delegate.getIntegrationPatternType();
+    }
+
+
+    /**
+     * Immutable copy of source metrics.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long messages;
+        private final long nulls;
+        private final long errors;
+        private final Histogram.Snapshot latency;
+        private final Histogram.Snapshot batchSize;
+
+        Snapshot(String name, long messages, long nulls, long errors, Histogram.Snapshot latency, Histogram.Snapshot batchSize) {
+            this.name = name;
+            this.messages = messages;
+            this.nulls = nulls;
+            this.errors = errors;
+            this.latency = latency;
+            this.batchSize = batchSize;
+        }
+
+        public String getName() { return name; }
+        public long getMessages() { return messages; }
+        public long getNulls() { return nulls; }
+        public long getErrors() { return errors; }
+        /**
+         * Latency of receive() in nanoseconds.
+         */
+        public Histogram.Snapshot getLatency() { return latency; }
+        /**
+         * Number of messages in finished batches.
+         */
+        public Histogram.Snapshot getBatchSize() { return batchSize; }
+
+        public Duration getLatencyPercentile(double percentile) { return Duration.ofNanos(latency.getPercentile(percentile)); }
+
+        @Override
+        public String toString() {
+            return "MessageSource{name: " + name
+                + ", messages: " + messages
+                + ", nulls: " + nulls
+                + ", errors: " + errors
+                + ", latency: " + latency
+                + ", batchSize: " + batchSize + "}";
+        }
+    }
+}
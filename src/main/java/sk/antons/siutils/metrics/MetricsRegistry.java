@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.metrics;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named collection of measured message sources. It has no dependency to any
+ * metrics library. Snapshots can be periodically read and published (for
+ * example as micrometer gauges).
+ * @author antons
+ */
+public class MetricsRegistry {
+
+    private final Map<String, MetricsMessageSource<?>> sources = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry of() { return new MetricsRegistry(); }
+
+    /**
+     * Registers source with given name. Source registered with the same name
+     * before is replaced.
+     */
+    public MetricsRegistry register(String name, MetricsMessageSource<?> source) {
+        if(name == null) throw new NullPointerException("unable to register metrics - no name");
+        if(source == null) sources.remove(name);
+        else sources.put(name, source);
+        return this;
+    }
+
+    public MetricsMessageSource<?> get(String name) { return name == null ? null : sources.get(name); }
+    public Collection<MetricsMessageSource<?>> sources() { return sources.values(); }
+
+    /**
+     * Snapshots of all registered sources sorted by name.
+     */
+    public Map<String, MetricsMessageSource.Snapshot> snapshot() {
+        Map<String, MetricsMessageSource.Snapshot> map = new TreeMap<>();
+        sources.forEach((name, source) -> map.put(name, source.snapshot()));
+        return map;
+    }
+
+    /**
+     * Resets all registered sources.
+     */
+    public void reset() {
+        sources.values().forEach(MetricsMessageSource::reset);
+    }
+}
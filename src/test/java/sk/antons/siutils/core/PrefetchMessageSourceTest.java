@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.core;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.integration.core.MessageSource;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+/**
+ * No prefetched message is lost when source is stopped and started again.
+ * @author antons
+ */
+public class PrefetchMessageSourceTest {
+    private static final int MESSAGES = 1000;
+    private static final int DEPTH = 4;
+
+    @Test
+    public void messagesAreDeliveredInOrderAfterRestart() throws Exception {
+        PrefetchMessageSource<Integer> source = PrefetchMessageSource.of(counter()).depth(DEPTH);
+        int expected = 0;
+        try {
+            while(expected < MESSAGES) {
+                source.start();
+                waitUntilFull(source);
+                Message<Integer> message = receive(source);
+                Assert.assertEquals(expected++, (int)message.getPayload());
+                Assert.assertTrue(source.stop(Duration.ofSeconds(5)));
+                source.start();
+                for(int i = 0; i < DEPTH; i++) {
+                    message = receive(source);
+                    Assert.assertEquals(expected++, (int)message.getPayload());
+                }
+                source.stop(Duration.ofSeconds(5));
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void drainReturnsMessagesLeftAfterStop() throws Exception {
+        PrefetchMessageSource<Integer> source = PrefetchMessageSource.of(counter()).depth(DEPTH);
+        source.start();
+        waitUntilFull(source);
+        Assert.assertEquals(0, (int)receive(source).getPayload());
+        List<Message<Integer>> left = source.drain(Duration.ofSeconds(5));
+        Assert.assertFalse(left.isEmpty());
+        for(int i = 0; i < left.size(); i++) {
+            Assert.assertEquals(i + 1, (int)left.get(i).getPayload());
+        }
+        source.start();
+        Assert.assertEquals(left.size() + 1, (int)receive(source).getPayload());
+        source.close();
+    }
+
+    private static MessageSource<Integer> counter() {
+        AtomicInteger counter = new AtomicInteger();
+        return () -> MessageBuilder.withPayload(counter.getAndIncrement()).build();
+    }
+
+    private static void waitUntilFull(PrefetchMessageSource<Integer> source) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while((source.getPrefetched() < DEPTH) && (System.currentTimeMillis() < end)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static Message<Integer> receive(PrefetchMessageSource<Integer> source) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < end) {
+            Message<Integer> message = source.receive();
+            if(message != null) return message;
+            Thread.sleep(1);
+        }
+        throw new AssertionError("no message received");
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Several scanners with partitioners in one JVM read same directory.
+ * @author antons
+ */
+public class FilePartitionerTest {
+    private static final int FILES = 1000;
+    private static final List<String> MEMBERS = List.of("node1", "node2", "node3");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private Set<String> all;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("inbox");
+        all = new HashSet<>();
+        for(int i = 0; i < FILES; i++) {
+            String name = "file-" + i + ".txt";
+            new File(directory, name).createNewFile();
+            all.add(name);
+        }
+    }
+
+    @Test
+    public void membersListDisjointFilesCoveringDirectory() throws Exception {
+        List<RealHeadDirectoryScanner> scanners = new ArrayList<>();
+        for(String member : MEMBERS) {
+            scanners.add(new RealHeadDirectoryScanner(FILES)
+                .partitioner(FilePartitioner.of(member, MEMBERS)));
+        }
+        List<Set<String>> listed = listInParallel(scanners);
+        assertDisjointCoverage(listed);
+        for(Set<String> names : listed) {
+            Assert.assertFalse("member without files", names.isEmpty());
+        }
+    }
+
+    @Test
+    public void presentMembersTakeOverFilesOfAbsentMember() throws Exception {
+        Duration timeout = Duration.ofMinutes(1);
+        List<RealHeadDirectoryScanner> scanners = new ArrayList<>();
+        List<FilePartitioner> partitioners = new ArrayList<>();
+        // node3 is not started, so it never touches its heartbeat
+        for(String member : List.of("node1", "node2")) {
+            FilePartitioner partitioner = FilePartitioner.of(member, MEMBERS)
+                .heartbeat(directory.getPath(), timeout);
+            partitioners.add(partitioner);
+            scanners.add(new RealHeadDirectoryScanner(FILES).partitioner(partitioner));
+        }
+        // first refresh touches own heartbeats, refresh in listing sees other member
+        for(FilePartitioner partitioner : partitioners) partitioner.refresh();
+        List<Set<String>> listed = listInParallel(scanners);
+        assertDisjointCoverage(listed);
+        for(FilePartitioner partitioner : partitioners) {
+            Assert.assertEquals(Set.of("node1", "node2"), partitioner.getPresentMembers());
+        }
+    }
+
+    @Test
+    public void onlyFilesOfAbsentMemberAreMoved() {
+        FilePartitioner all3 = FilePartitioner.of("node1", MEMBERS);
+        FilePartitioner without3 = FilePartitioner.of("node1", MEMBERS).alive(m -> !"node3".equals(m));
+        without3.refresh();
+        int moved = 0;
+        for(String name : all) {
+            String full = all3.owner(name);
+            String reduced = without3.owner(name);
+            if("node3".equals(full)) Assert.assertNotEquals("node3", reduced);
+            else Assert.assertEquals("file of present member moved " + name, full, reduced);
+            if(!full.equals(reduced)) moved++;
+        }
+        Assert.assertTrue("no files of absent member", moved > 0);
+    }
+
+
+    private List<Set<String>> listInParallel(List<RealHeadDirectoryScanner> scanners) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(scanners.size());
+        try {
+            List<Future<Set<String>>> futures = new ArrayList<>();
+            for(RealHeadDirectoryScanner scanner : scanners) {
+                Callable<Set<String>> listing = () -> {
+                    Set<String> names = new HashSet<>();
+                    for(File file : scanner.listFiles(directory)) names.add(file.getName());
+                    return names;
+                };
+                futures.add(executor.submit(listing));
+            }
+            List<Set<String>> listed = new ArrayList<>();
+            for(Future<Set<String>> future : futures) listed.add(future.get());
+            return listed;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void assertDisjointCoverage(List<Set<String>> listed) {
+        Set<String> union = new HashSet<>();
+        for(Set<String> names : listed) {
+            for(String name : names) {
+                Assert.assertTrue("file listed by more members " + name, union.add(name));
+            }
+        }
+        Assert.assertEquals(all, union);
+    }
+
+}
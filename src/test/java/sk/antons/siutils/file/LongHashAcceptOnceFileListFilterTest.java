@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Eviction of full table must keep recent entries reachable.
+ * @author antons
+ */
+public class LongHashAcceptOnceFileListFilterTest {
+    // table has 2048 slots, so it is 3/4 full and probe sequences are long
+    private static final int CAPACITY = 1535;
+    private static final int FILES = 20 * CAPACITY;
+    private static final int RECENT = 50;
+
+    @Test
+    public void recentFilesAreNotAcceptedAgainAfterEviction() {
+        assertRecentRemembered(LongHashAcceptOnceFileListFilter.of(CAPACITY));
+    }
+
+    @Test
+    public void recentFilesAreNotAcceptedAgainAfterEvictionOffHeap() {
+        assertRecentRemembered(LongHashAcceptOnceFileListFilter.of(CAPACITY).offHeap(true));
+    }
+
+    @Test
+    public void allRememberedFilesAreReachableAfterEviction() {
+        LongHashAcceptOnceFileListFilter filter = LongHashAcceptOnceFileListFilter.of(CAPACITY);
+        for(int i = 0; i < FILES; i++) {
+            filter.accept(file(i));
+        }
+        int size = filter.size();
+        int found = 0;
+        for(int i = 0; i < FILES; i++) {
+            if(filter.remove(file(i))) found++;
+        }
+        Assert.assertEquals(size, found);
+        Assert.assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void evictionKeepsSizeInCapacity() {
+        LongHashAcceptOnceFileListFilter filter = LongHashAcceptOnceFileListFilter.of(CAPACITY);
+        for(int i = 0; i < FILES; i++) {
+            Assert.assertTrue(filter.accept(file(i)));
+            Assert.assertTrue("size " + filter.size(), filter.size() <= CAPACITY);
+        }
+    }
+
+    @Test
+    public void removedFileIsAcceptedAgainAfterEviction() {
+        LongHashAcceptOnceFileListFilter filter = LongHashAcceptOnceFileListFilter.of(CAPACITY);
+        for(int i = 0; i < FILES; i++) {
+            filter.accept(file(i));
+        }
+        for(int i = FILES - RECENT; i < FILES; i++) {
+            Assert.assertTrue("not removed " + i, filter.remove(file(i)));
+        }
+        for(int i = FILES - RECENT; i < FILES; i++) {
+            Assert.assertTrue("not accepted " + i, filter.accept(file(i)));
+        }
+    }
+
+
+    private static void assertRecentRemembered(LongHashAcceptOnceFileListFilter filter) {
+        for(int i = 0; i < FILES; i++) {
+            Assert.assertTrue("new file not accepted " + i, filter.accept(file(i)));
+        }
+        for(int i = FILES - RECENT; i < FILES; i++) {
+            Assert.assertFalse("recent file accepted again " + i, filter.accept(file(i)));
+        }
+    }
+
+    private static File file(int i) {
+        return new File("/data/inbox/file-" + i + ".xml");
+    }
+
+}
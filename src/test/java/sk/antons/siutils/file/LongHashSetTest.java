@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 Anton Straka
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sk.antons.siutils.file;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Values stay reachable after growing, removing and retaining.
+ * @author antons
+ */
+public class LongHashSetTest {
+    private static final int VALUES = 10_000;
+
+    @Test
+    public void addedValuesAreContained() {
+        LongHashSet set = filled();
+        Assert.assertEquals(VALUES, set.size());
+        for(int i = 0; i < VALUES; i++) {
+            Assert.assertTrue(set.contains(key(i)));
+            Assert.assertFalse(set.add(key(i)));
+        }
+        Assert.assertFalse(set.contains(key(VALUES)));
+    }
+
+    @Test
+    public void removedValuesAreNotContained() {
+        LongHashSet set = filled();
+        for(int i = 0; i < VALUES; i += 2) {
+            Assert.assertTrue(set.remove(key(i)));
+        }
+        Assert.assertEquals(VALUES / 2, set.size());
+        for(int i = 0; i < VALUES; i++) {
+            Assert.assertEquals("value " + i, i % 2 == 1, set.contains(key(i)));
+        }
+    }
+
+    @Test
+    public void retainAllKeepsOnlyCommonValues() {
+        LongHashSet set = filled();
+        LongHashSet other = new LongHashSet();
+        for(int i = 0; i < VALUES; i += 3) {
+            other.add(key(i));
+        }
+        set.retainAll(other);
+        Assert.assertEquals(other.size(), set.size());
+        for(int i = 0; i < VALUES; i++) {
+            Assert.assertEquals("value " + i, i % 3 == 0, set.contains(key(i)));
+        }
+    }
+
+
+    private static LongHashSet filled() {
+        LongHashSet set = new LongHashSet();
+        for(int i = 0; i < VALUES; i++) {
+            Assert.assertTrue(set.add(key(i)));
+        }
+        return set;
+    }
+
+    private static long key(int i) {
+        return LongHashSet.hash("/data/inbox/file-" + i + ".xml");
+    }
+
+}